@@ -2,17 +2,36 @@
 package mokema.asignment2;
 
 // JavaFX and other necessary imports
+import javafx.animation.AnimationTimer;
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.beans.property.SimpleObjectProperty;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
 import javafx.scene.Scene;
+import javafx.scene.SnapshotParameters;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.effect.BlendMode;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelBuffer;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
@@ -23,9 +42,64 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.util.Duration;
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 //Main application class for Digital Whiteboard
 
@@ -36,10 +110,15 @@ public class HelloApplication extends Application {
     private static final int CANVAS_WIDTH = 900;
     private static final int CANVAS_HEIGHT = 600;
 
+    // Stall watchdog settings, -Dwhiteboard.stallThresholdMs=0 turns it off
+    private static final long STALL_THRESHOLD_MS = Long.getLong("whiteboard.stallThresholdMs", 100);
+    private static final Path STALL_REPORT_DIR = Paths.get(System.getProperty("user.home"), ".whiteboard", "stalls");
+
     // Core application components
     private DrawingCanvas drawingCanvas;       // Handles drawing operations
     private MediaHandler mediaHandler;        // Manages audio/video playback
     private ToolbarManager toolbarManager;    // Manages UI toolbar
+    private StallWatchdog stallWatchdog;      // Reports FX thread stalls
 
     // Main entry point for the application
 
@@ -53,10 +132,30 @@ public class HelloApplication extends Application {
 
     @Override
     public void start(Stage primaryStage) {
+        startStallWatchdog();      // Watch for a frozen UI from the start
         initializeComponents();    // Create application components
         setupMainLayout(primaryStage);  // Set up the UI layout
     }
 
+    // JavaFX stop method - called when the application exits
+    @Override
+    public void stop() {
+        if (drawingCanvas != null) {
+            drawingCanvas.dispose();
+        }
+        if (stallWatchdog != null) {
+            stallWatchdog.stop();
+        }
+    }
+
+    // Starts sampling the FX thread whenever it stops responding
+    private void startStallWatchdog() {
+        if (STALL_THRESHOLD_MS > 0) {
+            stallWatchdog = new StallWatchdog(STALL_THRESHOLD_MS, STALL_REPORT_DIR);
+            stallWatchdog.start();
+        }
+    }
+
     // Initialize the main application components
     private void initializeComponents() {
         drawingCanvas = new DrawingCanvas(CANVAS_WIDTH, CANVAS_HEIGHT);
@@ -71,7 +170,7 @@ public class HelloApplication extends Application {
         BorderPane root = new BorderPane();  // Main layout container
 
         // Set up the layout hierarchy
-        root.setCenter(drawingCanvas.getCanvas());  // Drawing area in center
+        root.setCenter(drawingCanvas.getView());  // Drawing area in center
         root.setTop(toolbarManager.createToolbar());  // Toolbar at top
 
         // Create scene with optional CSS styling
@@ -94,10 +193,20 @@ public class HelloApplication extends Application {
         // Core drawing components
         private final Canvas canvas;          // The actual drawing surface
         private final GraphicsContext gc;     // Drawing context for the canvas
+        private final Canvas previewCanvas;   // Transparent layer above the board for transient feedback
+        private final GraphicsContext previewGc;
+        private final StackPane view;         // Board and preview layer stacked
+
+        // Software backend; when set, the board is its pixel buffer and the canvas is only an overlay
+        private final RasterBoard raster;
+        private boolean overlayDirty = false;  // Overlay holds content not yet merged into the raster
+        private double lastDrawX, lastDrawY;   // Previous freehand point for the raster backend
 
         // Undo/redo functionality stacks
         private final Stack<Image> undoStack = new Stack<>();
         private final Stack<Image> redoStack = new Stack<>();
+        private final Stack<Integer> undoSnapSizes = new Stack<>();  // Snap index size for each history state
+        private final Stack<Integer> redoSnapSizes = new Stack<>();
 
         // UI controls for drawing properties
         private final ColorPicker strokeColorPicker = new ColorPicker(Color.BLACK);
@@ -105,15 +214,24 @@ public class HelloApplication extends Application {
         private final ComboBox<String> toolSelector = new ComboBox<>();
         private final ComboBox<String> fontSelector = new ComboBox<>();
         private final Slider sizeSlider = new Slider(1, 50, 5);
+        private final Slider levelSlider = new Slider(0, 255, 32);  // Fill tolerance and threshold cutoff
+        private final Slider brightnessSlider = new Slider(-100, 100, 0);  // Brightness offset, 0 leaves pixels as they are
+        private final ComboBox<String> effectSelector = new ComboBox<>();
+        private final ComboBox<String> brushSelector = new ComboBox<>();
+        private final Slider hardnessSlider = new Slider(0, 1, 0.5);  // Edge hardness of brush tips
         private final TextField textInput = new TextField("NGOLA");
+        private final CheckBox smartShapesBox = new CheckBox("Smart shapes");  // Recognition and snapping
 
         // Drawing state tracking variables
         private String currentTool = "Draw";  // Currently selected tool
         private double startX, startY;        // Starting coordinates for shapes
         private boolean isDrawing = false;    // Flag for drawing in progress
+        private boolean boardChanged = false; // Board holds a result not yet pushed to history
+        private boolean tilesWaiting = false; // Tiles arrived while a redraw would have lost work
 
         // Image manipulation state
         private Image currentImage;           // Currently loaded image
+        private TiledImage tiledImage;        // Region-decoded image for very large files
         private double imageX, imageY;        // Image position
         private double imageWidth, imageHeight; // Image dimensions
         private boolean isDraggingImage = false; // Image dragging flag
@@ -121,15 +239,49 @@ public class HelloApplication extends Application {
         private double dragStartX, dragStartY; // Drag starting position
         private int resizeDirection = 0;      // Direction for resizing (0=none, 1-8 for different edges/corners)
 
+        // Reusable buffers for pixel tools, read once and written back once per operation
+        private WritableImage boardImage;
+        private int[] boardPixels;
+        private final SnapshotParameters pixelSnapshotParams = new SnapshotParameters();
+
+        // Selection state
+        private final PixelRegion selection = new PixelRegion();  // Pooled buffer of the selected pixels
+        private double[] lassoPoints = new double[256];  // Lasso outline as x, y pairs
+        private int lassoSize = 0;                       // Number of values used in lassoPoints
+        private boolean hasSelection = false;            // A region is selected
+        private boolean selectionFloating = false;       // Selected pixels are lifted off the board
+        private boolean isMovingSelection = false;       // Selection drag in progress
+        private double selectionX, selectionY;           // Top-left of the selection on the board
+
+        // Stamped brushes
+        private final BrushEngine brushEngine = new BrushEngine();
+        private WritableImage strokeLayerImage;  // Reused to composite highlighter strokes and the overlay
+        private int[] layerPixels;               // Pixels of strokeLayerImage for the raster backend
+
+        // Smart shapes
+        private final SnapIndex snapIndex = new SnapIndex();  // Snap targets of shapes on the board
+        private double[] strokePoints = new double[256];      // Freehand stroke as x, y pairs
+        private int strokeSize = 0;                           // Number of values used in strokePoints
+        private double shapeEndX, shapeEndY;                  // Where the shape being dragged ends
+
         // Constants
         private static final String[] FONT_FAMILIES = {"Arial", "Verdana", "Times New Roman", "Courier New"};
         private static final double RESIZE_HANDLE_SIZE = 8; // Size of image resize handles
         private static final double MIN_IMAGE_SIZE = 20;    // Minimum size for images
+        private static final long LARGE_IMAGE_PIXELS = 4096L * 4096L; // Above this, images are tiled instead of fully loaded
+        private static final double SNAP_RADIUS = 10;        // Distance within which shape points snap
 
         //Constructor - creates a new drawing canvas
         public DrawingCanvas(int width, int height) {
             canvas = new Canvas(width, height);
             gc = canvas.getGraphicsContext2D();
+            previewCanvas = new Canvas(width, height);
+            previewCanvas.setMouseTransparent(true);  // Events go to the board underneath
+            previewGc = previewCanvas.getGraphicsContext2D();
+            raster = RasterBoard.isRequested() ? new RasterBoard(width, height) : null;
+            view = raster == null
+                    ? new StackPane(canvas, previewCanvas)
+                    : new StackPane(raster.getView(), canvas, previewCanvas);
             initialize();  // Set up initial canvas state
         }
 
@@ -140,26 +292,40 @@ public class HelloApplication extends Application {
             setupToolSelector();   // Configure tool selection dropdown
             setupFontSelector();   // Configure font selection dropdown
             setupSizeSlider();     // Configure line size slider
+            setupEffectSelector(); // Configure pixel effect dropdown
+            setupBrushSelector();  // Configure brush dropdown
         }
 
         // Getter methods for UI components
         public Canvas getCanvas() { return canvas; }
+        public StackPane getView() { return view; }
         public GraphicsContext getGc() { return gc; }
         public ColorPicker getStrokeColorPicker() { return strokeColorPicker; }
         public ColorPicker getFillColorPicker() { return fillColorPicker; }
         public ComboBox<String> getToolSelector() { return toolSelector; }
         public ComboBox<String> getFontSelector() { return fontSelector; }
         public Slider getSizeSlider() { return sizeSlider; }
+        public Slider getLevelSlider() { return levelSlider; }
+        public Slider getBrightnessSlider() { return brightnessSlider; }
+        public ComboBox<String> getEffectSelector() { return effectSelector; }
+        public ComboBox<String> getBrushSelector() { return brushSelector; }
+        public Slider getHardnessSlider() { return hardnessSlider; }
         public TextField getTextInput() { return textInput; }
+        public CheckBox getSmartShapesBox() { return smartShapesBox; }
 
         // Set up the tool selection dropdown
         private void setupToolSelector() {
             toolSelector.getItems().addAll(
                     "Draw", "Line", "Rectangle", "Circle",
-                    "Text", "Image", "Eraser"
+                    "Text", "Image", "Eraser", "Fill", "Effect", "Select", "Lasso"
             );
             toolSelector.setValue("Draw");
-            toolSelector.setOnAction(e -> currentTool = toolSelector.getValue());
+            toolSelector.setOnAction(e -> {
+                if (!isSelectionTool(toolSelector.getValue())) {
+                    commitSelection();  // Drop the floating selection back onto the board
+                }
+                currentTool = toolSelector.getValue();
+            });
         }
 
         // Set up the font selection dropdown
@@ -174,6 +340,19 @@ public class HelloApplication extends Application {
             sizeSlider.setShowTickMarks(true);
         }
 
+        // Set up the pixel effect dropdown
+        private void setupEffectSelector() {
+            effectSelector.getItems().addAll(PixelTools.EFFECTS);
+            effectSelector.setValue("Blur");
+            pixelSnapshotParams.setFill(Color.TRANSPARENT);  // Keep erased areas transparent
+        }
+
+        // Set up the brush dropdown used by the Draw tool
+        private void setupBrushSelector() {
+            brushSelector.getItems().addAll(BrushEngine.BRUSHES);
+            brushSelector.setValue("Solid");
+        }
+
         // Set up mouse event handlers for the canvas
         private void setupMouseHandlers() {
             canvas.setOnMousePressed(this::handleMousePressed);
@@ -185,11 +364,22 @@ public class HelloApplication extends Application {
         // Handles mouse press events on the canvas
 
         private void handleMousePressed(MouseEvent e) {
-            saveState();  // Save current state for undo/redo
+            // Save current state for undo/redo, unless the press grabs a selection:
+            // a floating selection leaves a hole in the board that must not become history
+            if (!(isSelectionTool(currentTool) && isInsideSelection(e.getX(), e.getY()))) {
+                saveState();
+            }
 
             // Record starting position
             startX = e.getX();
             startY = e.getY();
+            if (isSnappingTool()) {
+                double[] snapped = snap(startX, startY);
+                startX = snapped[0];
+                startY = snapped[1];
+            }
+            shapeEndX = startX;
+            shapeEndY = startY;
 
             // Handle image interaction if needed
             if (handleImageInteraction(e)) {
@@ -209,7 +399,7 @@ public class HelloApplication extends Application {
         // Handles image interaction (dragging/resizing)
         //return true if image interaction was handled
         private boolean handleImageInteraction(MouseEvent e) {
-            if (currentTool.equals("Image") && currentImage != null) {
+            if (currentTool.equals("Image") && hasImage()) {
                 double mouseX = e.getX();
                 double mouseY = e.getY();
 
@@ -264,13 +454,25 @@ public class HelloApplication extends Application {
         private void handleToolSpecificPress() {
             switch (currentTool) {
                 case "Draw":
-                    gc.beginPath();
-                    gc.moveTo(startX, startY);
+                    if (isSolidBrush()) {
+                        gc.beginPath();
+                        gc.moveTo(startX, startY);
+                        lastDrawX = startX;
+                        lastDrawY = startY;
+                        strokeSize = 0;
+                        addStrokePoint(startX, startY);
+                    } else {
+                        beginBrushStroke();
+                    }
                     isDrawing = true;
                     break;
                 case "Eraser":
                     eraseAt(startX, startY);
                     break;
+                case "Select":
+                case "Lasso":
+                    beginSelection(startX, startY);
+                    break;
             }
         }
 
@@ -288,6 +490,17 @@ public class HelloApplication extends Application {
                 return;
             }
 
+            // Shape tools snap to nearby points of existing shapes
+            if (isSnappingTool()) {
+                double[] snapped = snap(x, y);
+                x = snapped[0];
+                y = snapped[1];
+            }
+            if (isShapeTool()) {
+                shapeEndX = x;  // Indexed as a snap target on release
+                shapeEndY = y;
+            }
+
             // Tool-specific drag handling
             handleToolSpecificDrag(x, y);
         }
@@ -297,7 +510,7 @@ public class HelloApplication extends Application {
         // return true if image interaction was handled
 
         private boolean handleImageDragAndResize(double x, double y) {
-            if (currentTool.equals("Image") && currentImage != null) {
+            if (currentTool.equals("Image") && hasImage()) {
                 if (isDraggingImage) {
                     // Update image position based on drag
                     imageX = x - dragStartX;
@@ -374,12 +587,27 @@ public class HelloApplication extends Application {
         private void handleToolSpecificDrag(double x, double y) {
             switch (currentTool) {
                 case "Draw":
-                    gc.lineTo(x, y);
-                    gc.stroke();
+                    if (isSolidBrush() && raster != null) {
+                        raster.strokeLine(lastDrawX, lastDrawY, x, y,
+                                sizeSlider.getValue(), strokeColorPicker.getValue());
+                        lastDrawX = x;
+                        lastDrawY = y;
+                        addStrokePoint(x, y);
+                    } else if (isSolidBrush()) {
+                        gc.lineTo(x, y);
+                        gc.stroke();
+                        addStrokePoint(x, y);
+                    } else {
+                        brushEngine.strokeTo(x, y);  // Stamps are drawn on the next pulse
+                    }
                     break;
                 case "Line":
                     redrawCanvas();
-                    gc.strokeLine(startX, startY, x, y);
+                    if (raster != null) {
+                        raster.strokeLine(startX, startY, x, y, sizeSlider.getValue(), strokeColorPicker.getValue());
+                    } else {
+                        gc.strokeLine(startX, startY, x, y);
+                    }
                     break;
                 case "Rectangle":
                     redrawCanvas();
@@ -392,13 +620,20 @@ public class HelloApplication extends Application {
                 case "Eraser":
                     eraseAt(x, y);
                     break;
+                case "Effect":
+                    drawRegionOutline(startX, startY, x, y);
+                    break;
+                case "Select":
+                case "Lasso":
+                    dragSelection(x, y);
+                    break;
             }
         }
 
 
         // Handles mouse release events on the canvas
         private void handleMouseReleased(MouseEvent e) {
-            if (currentTool.equals("Image") && currentImage != null) {
+            if (currentTool.equals("Image") && hasImage()) {
                 // Finish image manipulation
                 isDraggingImage = false;
                 isResizingImage = false;
@@ -409,7 +644,10 @@ public class HelloApplication extends Application {
             double x = e.getX();
             double y = e.getY();
 
-            // Tool-specific release handling
+            // Tool-specific release handling; the result stays unsaved until the next saveState
+            if (!isSelectionTool(currentTool)) {
+                boardChanged = true;
+            }
             handleToolSpecificRelease(x, y);
 
             if (isDrawing) {
@@ -423,12 +661,43 @@ public class HelloApplication extends Application {
 
         private void handleToolSpecificRelease(double x, double y) {
             switch (currentTool) {
+                case "Draw":
+                    if (isDrawing && !isSolidBrush()) {
+                        brushEngine.strokeTo(x, y);
+                        finishBrushStroke();
+                    } else if (isDrawing && smartShapesBox.isSelected()) {
+                        replaceWithRecognizedShape();
+                    }
+                    break;
+                case "Line":
+                case "Rectangle":
+                    registerShape(currentTool, startX, startY, shapeEndX, shapeEndY);
+                    previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+                    break;
+                case "Circle":
+                    double radius = Math.hypot(shapeEndX - startX, shapeEndY - startY);
+                    registerShape("Ellipse", startX - radius, startY - radius, startX + radius, startY + radius);
+                    previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+                    break;
                 case "Text":
                     drawText(textInput.getText(), x, y);
                     break;
                 case "Image":
                     addImage();
                     break;
+                case "Fill":
+                    fillAt(x, y);
+                    saveState();
+                    break;
+                case "Effect":
+                    previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+                    applyEffect(startX, startY, x, y);
+                    saveState();
+                    break;
+                case "Select":
+                case "Lasso":
+                    endSelection(x, y);
+                    break;
                 case "Audio":
                     // Handled by MediaHandler
                     break;
@@ -445,6 +714,14 @@ public class HelloApplication extends Application {
             double width = x2 - x1;
             double height = y2 - y1;
 
+            if (raster != null) {
+                if (fillColorPicker.getValue() != Color.TRANSPARENT) {
+                    raster.fillRect(x1, y1, width, height, fillColorPicker.getValue());
+                }
+                raster.strokeRect(x1, y1, width, height, sizeSlider.getValue(), strokeColorPicker.getValue());
+                return;
+            }
+
             if (fillColorPicker.getValue() != Color.TRANSPARENT) {
                 gc.fillRect(x1, y1, width, height);  // Fill if color is not transparent
             }
@@ -457,6 +734,12 @@ public class HelloApplication extends Application {
         private void drawCircle(double x1, double y1, double x2, double y2) {
             double radius = Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
 
+            if (raster != null) {
+                raster.drawCircle(x1, y1, radius, sizeSlider.getValue(), strokeColorPicker.getValue(),
+                        fillColorPicker.getValue() != Color.TRANSPARENT ? fillColorPicker.getValue() : null);
+                return;
+            }
+
             if (fillColorPicker.getValue() != Color.TRANSPARENT) {
                 gc.fillOval(x1 - radius, y1 - radius, radius * 2, radius * 2);  // Fill if color is not transparent
             }
@@ -467,6 +750,7 @@ public class HelloApplication extends Application {
         private void drawText(String text, double x, double y) {
             gc.setFont(Font.font(fontSelector.getValue(), sizeSlider.getValue() * 3));
             gc.fillText(text, x, y);
+            overlayDirty = raster != null;  // Text is merged into the raster at the next save
         }
 
 
@@ -475,7 +759,539 @@ public class HelloApplication extends Application {
 
         private void eraseAt(double x, double y) {
             double size = sizeSlider.getValue() * 2;
-            gc.clearRect(x - size / 2, y - size / 2, size, size);
+            if (raster != null) {
+                raster.clearRect(x - size / 2, y - size / 2, size, size);
+            } else {
+                gc.clearRect(x - size / 2, y - size / 2, size, size);
+            }
+        }
+
+
+        // Outlines the region an effect will be applied to on the preview layer
+        private void drawRegionOutline(double x1, double y1, double x2, double y2) {
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+            previewGc.save();
+            previewGc.setStroke(Color.DODGERBLUE);
+            previewGc.setLineWidth(1);
+            previewGc.setLineDashes(4);
+            previewGc.strokeRect(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1), Math.abs(y2 - y1));
+            previewGc.restore();
+        }
+
+
+        // Paint bucket: floods the area around the point with the fill color (stroke color if fill is transparent)
+        private void fillAt(double x, double y) {
+            int width = (int) canvas.getWidth();
+            int height = (int) canvas.getHeight();
+            if (x < 0 || y < 0 || x >= width || y >= height) return;
+
+            Color color = fillColorPicker.getValue().getOpacity() > 0
+                    ? fillColorPicker.getValue() : strokeColorPicker.getValue();
+            int[] pixels = readBoardPixels();
+            int[] bounds = PixelTools.floodFill(pixels, width, height, (int) x, (int) y,
+                    PixelTools.toArgb(color), (int) levelSlider.getValue());
+            if (bounds != null) {
+                writeBoardPixels(bounds[0], bounds[1], bounds[2] - bounds[0] + 1, bounds[3] - bounds[1] + 1);
+            }
+        }
+
+
+        // Runs the selected effect over the dragged region
+        private void applyEffect(double x1, double y1, double x2, double y2) {
+            int width = (int) canvas.getWidth();
+            int height = (int) canvas.getHeight();
+            int left = (int) Math.max(0, Math.min(x1, x2));
+            int top = (int) Math.max(0, Math.min(y1, y2));
+            int right = (int) Math.min(width, Math.ceil(Math.max(x1, x2)));
+            int bottom = (int) Math.min(height, Math.ceil(Math.max(y1, y2)));
+            if (right - left < 1 || bottom - top < 1) return;
+
+            String effect = effectSelector.getValue();
+            int amount;
+            switch (effect) {
+                case "Blur":
+                    amount = Math.max(1, (int) sizeSlider.getValue() / 2);
+                    break;
+                case "Brightness":
+                    amount = (int) brightnessSlider.getValue();
+                    break;
+                default:
+                    amount = (int) levelSlider.getValue();
+                    break;
+            }
+            int[] pixels = readBoardPixels();
+            PixelTools.applyEffect(effect, pixels, width, left, top, right - left, bottom - top, amount);
+            writeBoardPixels(left, top, right - left, bottom - top);
+        }
+
+
+        // Whether the Draw tool uses the plain path stroke instead of a stamped brush
+        private boolean isSolidBrush() {
+            return brushSelector.getValue().equals("Solid");
+        }
+
+
+        // Starts a stamped stroke; highlighter strokes build up on the preview layer first
+        private void beginBrushStroke() {
+            boolean highlighter = brushSelector.getValue().equals("Highlighter");
+            if (highlighter) {
+                // Multiply the whole stroke once, so overlapping stamps don't darken each other
+                previewCanvas.setBlendMode(BlendMode.MULTIPLY);
+            }
+            brushEngine.begin(highlighter ? previewGc::drawImage : boardSink(), brushSelector.getValue(),
+                    sizeSlider.getValue(), strokeColorPicker.getValue(), hardnessSlider.getValue(),
+                    startX, startY);
+        }
+
+
+        // Flushes the last stamps and, for the highlighter, multiplies the stroke onto the board
+        private void finishBrushStroke() {
+            brushEngine.end();
+            if (previewCanvas.getBlendMode() == BlendMode.MULTIPLY) {
+                int width = (int) previewCanvas.getWidth();
+                int height = (int) previewCanvas.getHeight();
+                if (strokeLayerImage == null || strokeLayerImage.getWidth() != width
+                        || strokeLayerImage.getHeight() != height) {
+                    strokeLayerImage = new WritableImage(width, height);
+                }
+                previewCanvas.setBlendMode(null);  // Snapshot the stroke itself, not the blended result
+                previewCanvas.snapshot(pixelSnapshotParams, strokeLayerImage);
+                if (raster != null) {
+                    raster.composite(readLayer(strokeLayerImage), true);
+                } else {
+                    gc.save();
+                    gc.setGlobalBlendMode(BlendMode.MULTIPLY);
+                    gc.drawImage(strokeLayerImage, 0, 0);
+                    gc.restore();
+                }
+                previewGc.clearRect(0, 0, width, height);
+            }
+        }
+
+
+        // Whether the current tool draws a shape that other shapes can snap to
+        private boolean isShapeTool() {
+            return currentTool.equals("Line") || currentTool.equals("Rectangle") || currentTool.equals("Circle");
+        }
+
+
+        // Whether the current tool snaps to existing shapes
+        private boolean isSnappingTool() {
+            return smartShapesBox.isSelected() && isShapeTool();
+        }
+
+
+        // Snaps a point to the nearest shape feature in range and marks it on the preview layer
+        private double[] snap(double x, double y) {
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+            double[] snapped = snapIndex.snap(x, y, SNAP_RADIUS);
+            if (snapped == null) {
+                return new double[]{x, y};
+            }
+            previewGc.setStroke(Color.ORANGERED);
+            previewGc.setLineWidth(1.5);
+            previewGc.setLineDashes(null);
+            previewGc.strokeOval(snapped[0] - 5, snapped[1] - 5, 10, 10);
+            return snapped;
+        }
+
+
+        private void addStrokePoint(double x, double y) {
+            if (strokeSize + 2 > strokePoints.length) {
+                strokePoints = Arrays.copyOf(strokePoints, strokePoints.length * 2);
+            }
+            strokePoints[strokeSize++] = x;
+            strokePoints[strokeSize++] = y;
+        }
+
+
+        // Replaces the freehand stroke with a clean line, rectangle, ellipse or arrow if it fits one
+        private void replaceWithRecognizedShape() {
+            ShapeRecognizer.Shape shape = ShapeRecognizer.recognize(strokePoints, strokeSize);
+            if (shape == null) return;  // Keep the stroke as drawn
+
+            redrawCanvas();  // Back to the board as it was before the stroke
+            Color color = strokeColorPicker.getValue();
+            double width = sizeSlider.getValue();
+            switch (shape.kind) {
+                case "Line":
+                    strokeSegment(shape.x1, shape.y1, shape.x2, shape.y2, color, width);
+                    break;
+                case "Arrow":
+                    strokeSegment(shape.x1, shape.y1, shape.x2, shape.y2, color, width);
+                    double angle = Math.atan2(shape.y2 - shape.y1, shape.x2 - shape.x1);
+                    double head = Math.min(20 + width, Math.hypot(shape.x2 - shape.x1, shape.y2 - shape.y1) / 3);
+                    for (double side : new double[]{-1, 1}) {
+                        double barb = angle + Math.PI - side * Math.PI / 6;
+                        strokeSegment(shape.x2, shape.y2,
+                                shape.x2 + head * Math.cos(barb), shape.y2 + head * Math.sin(barb), color, width);
+                    }
+                    break;
+                case "Rectangle":
+                    if (raster != null) {
+                        raster.strokeRect(shape.x1, shape.y1, shape.x2 - shape.x1, shape.y2 - shape.y1, width, color);
+                    } else {
+                        gc.strokeRect(shape.x1, shape.y1, shape.x2 - shape.x1, shape.y2 - shape.y1);
+                    }
+                    break;
+                case "Ellipse":
+                    if (raster != null) {
+                        // The raster backend has no ellipse, so trace it with short segments
+                        double cx = (shape.x1 + shape.x2) / 2, cy = (shape.y1 + shape.y2) / 2;
+                        double rx = (shape.x2 - shape.x1) / 2, ry = (shape.y2 - shape.y1) / 2;
+                        for (int i = 0; i < 64; i++) {
+                            double a0 = Math.PI * 2 * i / 64, a1 = Math.PI * 2 * (i + 1) / 64;
+                            raster.strokeLine(cx + rx * Math.cos(a0), cy + ry * Math.sin(a0),
+                                    cx + rx * Math.cos(a1), cy + ry * Math.sin(a1), width, color);
+                        }
+                    } else {
+                        gc.strokeOval(shape.x1, shape.y1, shape.x2 - shape.x1, shape.y2 - shape.y1);
+                    }
+                    break;
+            }
+            registerShape(shape.kind, shape.x1, shape.y1, shape.x2, shape.y2);
+        }
+
+        private void strokeSegment(double x1, double y1, double x2, double y2, Color color, double width) {
+            if (raster != null) {
+                raster.strokeLine(x1, y1, x2, y2, width, color);
+            } else {
+                gc.strokeLine(x1, y1, x2, y2);
+            }
+        }
+
+
+        // Adds the snap points and edges of a finished shape to the index
+        // Each history state records the index size, so undo and redo bring it back in step.
+        private void registerShape(String kind, double x1, double y1, double x2, double y2) {
+            if (x1 == x2 && y1 == y2) return;  // A click, not a shape
+            switch (kind) {
+                case "Line":
+                case "Arrow":
+                    snapIndex.addPoint(x1, y1);
+                    snapIndex.addPoint(x2, y2);
+                    snapIndex.addPoint((x1 + x2) / 2, (y1 + y2) / 2);
+                    snapIndex.addSegment(x1, y1, x2, y2);
+                    break;
+                case "Rectangle": {
+                    double left = Math.min(x1, x2), right = Math.max(x1, x2);
+                    double top = Math.min(y1, y2), bottom = Math.max(y1, y2);
+                    double midX = (left + right) / 2, midY = (top + bottom) / 2;
+                    double[] points = {left, top, right, top, right, bottom, left, bottom,
+                            midX, top, right, midY, midX, bottom, left, midY, midX, midY};
+                    for (int i = 0; i < points.length; i += 2) {
+                        snapIndex.addPoint(points[i], points[i + 1]);
+                    }
+                    snapIndex.addSegment(left, top, right, top);
+                    snapIndex.addSegment(right, top, right, bottom);
+                    snapIndex.addSegment(left, bottom, right, bottom);
+                    snapIndex.addSegment(left, top, left, bottom);
+                    break;
+                }
+                case "Ellipse": {
+                    double midX = (x1 + x2) / 2, midY = (y1 + y2) / 2;
+                    snapIndex.addPoint(midX, midY);
+                    snapIndex.addPoint(midX, y1);
+                    snapIndex.addPoint(x2, midY);
+                    snapIndex.addPoint(midX, y2);
+                    snapIndex.addPoint(x1, midY);
+                    break;
+                }
+            }
+        }
+
+
+        // Whether the tool works on the current selection
+        private boolean isSelectionTool(String tool) {
+            return tool.equals("Select") || tool.equals("Lasso");
+        }
+
+
+        // Whether the point lies on a selected pixel
+        private boolean isInsideSelection(double x, double y) {
+            return hasSelection && selection.contains((int) (x - selectionX), (int) (y - selectionY));
+        }
+
+
+        // Starts moving the selection if clicked inside it, otherwise starts a new one
+        private void beginSelection(double x, double y) {
+            if (isInsideSelection(x, y)) {
+                if (!selectionFloating) {
+                    liftSelection();
+                }
+                isMovingSelection = true;
+                dragStartX = x - selectionX;
+                dragStartY = y - selectionY;
+                return;
+            }
+
+            commitSelection();
+            lassoSize = 0;
+            addLassoPoint(x, y);
+        }
+
+
+        // Moves the selection or grows the marquee/lasso outline
+        private void dragSelection(double x, double y) {
+            if (isMovingSelection) {
+                // Only the position changes; the same image is redrawn on the preview layer
+                selectionX = x - dragStartX;
+                selectionY = y - dragStartY;
+                drawSelectionPreview();
+                return;
+            }
+
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+            setSelectionOutlineStyle();
+            if (currentTool.equals("Lasso")) {
+                addLassoPoint(x, y);
+                previewGc.strokePolyline(lassoXs(), lassoYs(), lassoSize / 2);
+            } else {
+                previewGc.strokeRect(Math.min(startX, x), Math.min(startY, y),
+                        Math.abs(x - startX), Math.abs(y - startY));
+            }
+        }
+
+
+        // Finishes a move, or captures the outlined region into the selection buffer
+        private void endSelection(double x, double y) {
+            if (isMovingSelection) {
+                isMovingSelection = false;
+                return;
+            }
+
+            // Bounds of the marquee or lasso, clipped to the board
+            double minX = Math.min(startX, x), maxX = Math.max(startX, x);
+            double minY = Math.min(startY, y), maxY = Math.max(startY, y);
+            double[] polygon = null;
+            if (currentTool.equals("Lasso")) {
+                addLassoPoint(x, y);
+                for (int i = 0; i < lassoSize; i += 2) {
+                    minX = Math.min(minX, lassoPoints[i]);
+                    maxX = Math.max(maxX, lassoPoints[i]);
+                    minY = Math.min(minY, lassoPoints[i + 1]);
+                    maxY = Math.max(maxY, lassoPoints[i + 1]);
+                }
+                polygon = Arrays.copyOf(lassoPoints, lassoSize);
+            }
+            int left = (int) Math.max(0, Math.floor(minX));
+            int top = (int) Math.max(0, Math.floor(minY));
+            int right = (int) Math.min(canvas.getWidth(), Math.ceil(maxX));
+            int bottom = (int) Math.min(canvas.getHeight(), Math.ceil(maxY));
+
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+            if (right - left < 2 || bottom - top < 2) {
+                hasSelection = false;  // A click without a drag just deselects
+                return;
+            }
+
+            selection.capture(readBoardPixels(), (int) canvas.getWidth(), left, top,
+                    right - left, bottom - top, polygon);
+            selectionX = left;
+            selectionY = top;
+            hasSelection = true;
+            selectionFloating = false;
+            drawSelectionPreview();
+        }
+
+
+        // Clears the selected pixels from the board so they float on the preview layer
+        private void liftSelection() {
+            int[] pixels = readBoardPixels();
+            int stride = (int) canvas.getWidth();
+            selection.clearFrom(pixels, stride, (int) selectionX, (int) selectionY);
+            writeBoardPixels((int) selectionX, (int) selectionY, selection.getWidth(), selection.getHeight());
+            selectionFloating = true;
+            drawSelectionPreview();
+        }
+
+
+        // Draws a floating selection back onto the board and deselects
+        private void commitSelection() {
+            if (hasSelection && selectionFloating) {
+                if (raster != null) {
+                    raster.drawImage(selection.getImage(), 0, 0, selection.getWidth(), selection.getHeight(),
+                            selectionX, selectionY, selection.getWidth(), selection.getHeight());
+                } else {
+                    gc.drawImage(selection.getImage(), 0, 0, selection.getWidth(), selection.getHeight(),
+                            selectionX, selectionY, selection.getWidth(), selection.getHeight());
+                }
+                saveState();
+            }
+            hasSelection = false;
+            selectionFloating = false;
+            isMovingSelection = false;
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+        }
+
+
+        // Shows the selection outline, and the floating pixels when lifted
+        private void drawSelectionPreview() {
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+            if (!hasSelection) return;
+            if (selectionFloating) {
+                previewGc.drawImage(selection.getImage(), 0, 0, selection.getWidth(), selection.getHeight(),
+                        selectionX, selectionY, selection.getWidth(), selection.getHeight());
+            }
+            setSelectionOutlineStyle();
+            previewGc.strokeRect(selectionX, selectionY, selection.getWidth(), selection.getHeight());
+        }
+
+        private void setSelectionOutlineStyle() {
+            previewGc.setStroke(Color.DODGERBLUE);
+            previewGc.setLineWidth(1);
+            previewGc.setLineDashes(4);
+        }
+
+        private void addLassoPoint(double x, double y) {
+            if (lassoSize + 2 > lassoPoints.length) {
+                lassoPoints = Arrays.copyOf(lassoPoints, lassoPoints.length * 2);
+            }
+            lassoPoints[lassoSize++] = x;
+            lassoPoints[lassoSize++] = y;
+        }
+
+        private double[] lassoXs() {
+            double[] xs = new double[lassoSize / 2];
+            for (int i = 0; i < xs.length; i++) xs[i] = lassoPoints[i * 2];
+            return xs;
+        }
+
+        private double[] lassoYs() {
+            double[] ys = new double[lassoSize / 2];
+            for (int i = 0; i < ys.length; i++) ys[i] = lassoPoints[i * 2 + 1];
+            return ys;
+        }
+
+
+        // Copies the selection to the system clipboard
+        public void copySelection() {
+            if (!hasSelection) return;
+            ClipboardContent content = new ClipboardContent();
+            content.putImage(selection.toImage());
+            Clipboard.getSystemClipboard().setContent(content);
+        }
+
+
+        // Copies the selection to the system clipboard and removes it from the board
+        public void cutSelection() {
+            if (!hasSelection) return;
+            copySelection();
+            if (!selectionFloating) {
+                liftSelection();
+            }
+            hasSelection = false;  // Discard instead of committing
+            selectionFloating = false;
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
+            saveState();
+        }
+
+
+        // Pastes an image from the system clipboard as a floating selection
+        public void pasteSelection() {
+            Clipboard clipboard = Clipboard.getSystemClipboard();
+            if (!clipboard.hasImage()) return;
+            Image image = clipboard.getImage();  // Null for image data JavaFX can't decode
+            if (image == null || image.isError() || image.getPixelReader() == null) {
+                showError("Paste Error", "The image on the clipboard is in an unsupported format");
+                return;
+            }
+
+            toolSelector.setValue("Select");  // Commits any selection of other tools
+            currentTool = "Select";
+            commitSelection();
+            selection.load(image);
+            selectionX = Math.max(0, (canvas.getWidth() - selection.getWidth()) / 2);
+            selectionY = Math.max(0, (canvas.getHeight() - selection.getHeight()) / 2);
+            hasSelection = true;
+            selectionFloating = true;
+            drawSelectionPreview();
+        }
+
+
+        // Reads the whole board into the reusable pixel buffer (non-premultiplied ARGB)
+        private int[] readBoardPixels() {
+            int width = (int) canvas.getWidth();
+            int height = (int) canvas.getHeight();
+            if (boardImage == null || boardImage.getWidth() != width || boardImage.getHeight() != height) {
+                boardImage = new WritableImage(width, height);
+                boardPixels = new int[width * height];
+            }
+            if (raster != null) {
+                flattenOverlay();
+                raster.readStraight(boardPixels);  // Straight from memory, no snapshot
+                return boardPixels;
+            }
+            canvas.snapshot(pixelSnapshotParams, boardImage);
+            boardImage.getPixelReader().getPixels(0, 0, width, height,
+                    PixelFormat.getIntArgbInstance(), boardPixels, 0, width);
+            return boardPixels;
+        }
+
+
+        // Exports the history of the board as an animated GIF or a PNG sequence
+        public void exportTimelapse() {
+            commitSelection();  // Include a floating selection as the last operation
+            if (undoStack.size() < 2) {
+                showError("Timelapse Error", "Nothing has been drawn yet.");
+                return;
+            }
+
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Export Timelapse");
+            FileChooser.ExtensionFilter gifFilter = new FileChooser.ExtensionFilter("Animated GIF", "*.gif");
+            fileChooser.getExtensionFilters().addAll(gifFilter,
+                    new FileChooser.ExtensionFilter("PNG sequence", "*.png"));
+
+            File file = fileChooser.showSaveDialog(null);
+            if (file != null) {
+                // History images are never modified, so workers can read them off the FX thread
+                boolean gif = fileChooser.getSelectedExtensionFilter() == gifFilter
+                        || file.getName().toLowerCase().endsWith(".gif");
+                new TimelapseExporter(new ArrayList<>(undoStack), file, gif).start();
+            }
+        }
+
+
+        // Merges whatever was drawn on the canvas overlay into the raster board
+        // Only text takes this path; everything else is drawn into the raster directly.
+        private void flattenOverlay() {
+            if (raster == null || !overlayDirty) return;
+            int width = (int) canvas.getWidth();
+            int height = (int) canvas.getHeight();
+            if (strokeLayerImage == null || strokeLayerImage.getWidth() != width
+                    || strokeLayerImage.getHeight() != height) {
+                strokeLayerImage = new WritableImage(width, height);
+            }
+            canvas.snapshot(pixelSnapshotParams, strokeLayerImage);
+            raster.composite(readLayer(strokeLayerImage), false);
+            gc.clearRect(0, 0, width, height);
+            overlayDirty = false;
+        }
+
+
+        // Reads a layer snapshot as premultiplied ARGB into a reused buffer
+        private int[] readLayer(WritableImage layer) {
+            int width = (int) layer.getWidth();
+            int height = (int) layer.getHeight();
+            if (layerPixels == null || layerPixels.length != width * height) {
+                layerPixels = new int[width * height];
+            }
+            layer.getPixelReader().getPixels(0, 0, width, height,
+                    PixelFormat.getIntArgbPreInstance(), layerPixels, 0, width);
+            return layerPixels;
+        }
+
+
+        // Writes a region of the pixel buffer back to the board
+        private void writeBoardPixels(int x, int y, int width, int height) {
+            if (raster != null) {
+                raster.writeStraight(boardPixels, x, y, width, height);
+                return;
+            }
+            int stride = (int) canvas.getWidth();
+            gc.getPixelWriter().setPixels(x, y, width, height,
+                    PixelFormat.getIntArgbInstance(), boardPixels, y * stride + x, stride);
         }
 
 
@@ -490,20 +1306,76 @@ public class HelloApplication extends Application {
             File file = fileChooser.showOpenDialog(null);
 
             if (file != null) {
-                currentImage = new Image(file.toURI().toString());
-                scaleAndPositionImage();  // Scale and position the new image
-                redrawCanvas();          // Refresh the canvas
-                saveState();             // Save state for undo/redo
+                try {
+                    // Read only the header so huge files never get decoded in full
+                    int[] size = TiledImage.readDimensions(file);
+                    disposeTiledImage();
+
+                    if ((long) size[0] * size[1] > LARGE_IMAGE_PIXELS) {
+                        // Gigapixel scans and maps are streamed tile by tile
+                        currentImage = null;
+                        tiledImage = new TiledImage(file, size[0], size[1], this::showArrivedTiles);
+                    } else {
+                        currentImage = new Image(file.toURI().toString());
+                    }
+                    scaleAndPositionImage(size[0], size[1]);  // Scale and position the new image
+                    redrawCanvas();          // Refresh the canvas
+                    saveState();             // Save state for undo/redo
+                } catch (IOException e) {
+                    showError("Image Error", "Could not load image: " + e.getMessage());
+                }
+            }
+        }
+
+
+        // Redraws the board with newly decoded tiles without losing work
+        // A redraw starts from the last history entry, so while the board holds anything newer
+        // the redraw is left to the next saveState.
+        private void showArrivedTiles() {
+            if (boardChanged || canvas.isPressed() || isDrawing || (hasSelection && selectionFloating)) {
+                tilesWaiting = true;
+                return;
+            }
+            redrawCanvas();
+        }
+
+
+        // Releases background image decoding and its disk cache; called on exit
+        public void dispose() {
+            if (tiledImage != null) {
+                tiledImage.close();
+                tiledImage = null;
+            }
+        }
+
+
+        // Where images and brush stamps land on the board: straight into the raster in software mode
+        private ImageSink boardSink() {
+            return raster != null ? raster::drawImage : gc::drawImage;
+        }
+
+
+        // Whether an image (regular or tiled) is currently placed on the canvas
+        private boolean hasImage() {
+            return currentImage != null || tiledImage != null;
+        }
+
+
+        // Stops background decoding and removes the tile cache of the previous large image
+        private void disposeTiledImage() {
+            if (tiledImage != null) {
+                tiledImage.dispose();
+                tiledImage = null;
             }
         }
 
 
         // Scales and positions a newly loaded image
 
-        private void scaleAndPositionImage() {
+        private void scaleAndPositionImage(double sourceWidth, double sourceHeight) {
             double scaleFactor = 0.25;  // Default scaling factor
-            imageWidth = Math.min(currentImage.getWidth() * scaleFactor, 200);
-            imageHeight = currentImage.getHeight() * (imageWidth / currentImage.getWidth());
+            imageWidth = Math.min(sourceWidth * scaleFactor, 200);
+            imageHeight = sourceHeight * (imageWidth / sourceWidth);
 
             // Position image - centered if no specific position set
             if (startX == 0 && startY == 0) {
@@ -521,15 +1393,26 @@ public class HelloApplication extends Application {
         private void redrawCanvas() {
             // Clear and redraw everything
             gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            overlayDirty = false;
+            tilesWaiting = false;  // Every tile decoded so far is drawn below
 
             // Redraw previous state from undo stack if available
-            if (!undoStack.isEmpty()) {
+            if (raster != null) {
+                if (undoStack.isEmpty()) raster.clear(); else raster.restore(undoStack.peek());
+            } else if (!undoStack.isEmpty()) {
                 gc.drawImage(undoStack.peek(), 0, 0);
             }
 
-            // Redraw current image if it exists
-            if (currentImage != null) {
-                gc.drawImage(currentImage, imageX, imageY, imageWidth, imageHeight);
+            // Redraw current image if it exists; in software mode it goes straight into the raster
+            if (hasImage()) {
+                ImageSink target = boardSink();
+                if (tiledImage != null) {
+                    // Only the tiles visible in the canvas are decoded and drawn
+                    tiledImage.draw(target, imageX, imageY, imageWidth, imageHeight,
+                            canvas.getWidth(), canvas.getHeight());
+                } else {
+                    target.drawImage(currentImage, imageX, imageY, imageWidth, imageHeight);
+                }
 
                 // Draw resize handles if image tool is active
                 if (currentTool.equals("Image")) {
@@ -575,16 +1458,39 @@ public class HelloApplication extends Application {
         //Saves current canvas state to undo stack
 
         private void saveState() {
-            undoStack.push(canvas.snapshot(null, null));
+            if (raster != null) {
+                flattenOverlay();
+                undoStack.push(raster.toImage());  // Copy of the pixel buffer, no GPU readback
+            } else {
+                undoStack.push(canvas.snapshot(null, null));
+            }
             redoStack.clear();  // Clear redo stack when new state is saved
+            pushSnapSize();
+
+            // The board now matches the history, so tiles held back can be drawn
+            boardChanged = false;
+            if (tilesWaiting) {
+                redrawCanvas();
+            }
+        }
+
+
+        // Records which shapes are snap targets in the state just saved
+        private void pushSnapSize() {
+            undoSnapSizes.push(snapIndex.size());
+            redoSnapSizes.clear();
         }
 
 
         // Undo the last operation
 
         public void undo() {
+            commitSelection();
             if (undoStack.size() > 1) {
                 redoStack.push(undoStack.pop());  // Move current state to redo stack
+                redoSnapSizes.push(undoSnapSizes.pop());
+                snapIndex.setSize(undoSnapSizes.peek());  // Undone shapes stop attracting the pointer
+                boardChanged = false;
                 redrawCanvas();                   // Redraw previous state
             }
         }
@@ -593,8 +1499,12 @@ public class HelloApplication extends Application {
         //Redo the last undone operation
 
         public void redo() {
+            commitSelection();
             if (!redoStack.isEmpty()) {
                 undoStack.push(redoStack.pop());  // Move state back to undo stack
+                undoSnapSizes.push(redoSnapSizes.pop());
+                snapIndex.setSize(undoSnapSizes.peek());
+                boardChanged = false;
                 redrawCanvas();                  // Redraw the state
             }
         }
@@ -603,9 +1513,19 @@ public class HelloApplication extends Application {
         // Clears the canvas completely
 
         public void clearCanvas() {
+            hasSelection = false;  // Nothing left to select
+            selectionFloating = false;
+            previewGc.clearRect(0, 0, previewCanvas.getWidth(), previewCanvas.getHeight());
             gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            overlayDirty = false;
+            if (raster != null) {
+                raster.clear();
+            }
+            snapIndex.clear();  // No shapes left to snap to
             undoStack.clear();  // Clear history
             redoStack.clear();
+            undoSnapSizes.clear();
+            redoSnapSizes.clear();
             saveState();       // Save blank state
         }
 
@@ -613,6 +1533,7 @@ public class HelloApplication extends Application {
         // Saves the canvas to an image file
 
         public void saveCanvas() {
+            commitSelection();  // Floating pixels are not part of the board yet
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Save Canvas");
 
@@ -631,9 +1552,14 @@ public class HelloApplication extends Application {
                     String extension = fileChooser.getSelectedExtensionFilter()
                             .getDescription().split("\\(")[0].trim();
 
-                    // Save canvas snapshot to file
+                    // Save canvas snapshot to file (the raster backend copies its buffer instead)
+                    if (raster != null) {
+                        flattenOverlay();
+                    }
                     ImageIO.write(
-                            SwingFXUtils.fromFXImage(canvas.snapshot(null, null), null),
+                            raster != null
+                                    ? raster.toBufferedImage()
+                                    : SwingFXUtils.fromFXImage(canvas.snapshot(null, null), null),
                             extension,
                             file
                     );
@@ -645,7 +1571,1921 @@ public class HelloApplication extends Application {
     }
 
 
-    //  class handling media (audio/video) playback
+    // interface for surfaces images are drawn onto: a GraphicsContext, or the raster board in software mode
+    // Tiles and brush stamps go through it, so both backends share one drawing path.
+
+    private interface ImageSink {
+        void drawImage(Image image, double x, double y, double width, double height);
+    }
+
+
+    // class implementing the software rendering backend
+    // The board lives in an int[] (premultiplied ARGB) shared with a PixelBuffer, shown
+    // through a WritableImage. Drawing calls are queued and rasterized straight into the
+    // array inside PixelBuffer.updateBuffer, once per pulse, and only the dirty region is
+    // signalled to JavaFX. History and export copy the array instead of taking a canvas snapshot.
+
+    private static class RasterBoard {
+        private static final int MAX_CACHED_IMAGES = 32;  // Pasted images and decoded tiles
+
+        private final int width, height;
+        private final int[] pixels;                    // Premultiplied ARGB, stride = width
+        private final PixelBuffer<IntBuffer> pixelBuffer;
+        private final ImageView view;                  // Displays the buffer under the canvas overlay
+
+        // Writes waiting for the buffer; JavaFX may only be handed changes inside updateBuffer
+        private final List<Runnable> pendingWrites = new ArrayList<>();
+
+        // Premultiplied pixels of recently drawn images, least recently used evicted first
+        private final Map<Image, int[]> imagePixels = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Image, int[]> eldest) {
+                return size() > MAX_CACHED_IMAGES;
+            }
+        };
+
+        // Union of regions changed by the writes being applied
+        private int dirtyMinX = Integer.MAX_VALUE, dirtyMinY = Integer.MAX_VALUE;
+        private int dirtyMaxX = Integer.MIN_VALUE, dirtyMaxY = Integer.MIN_VALUE;
+
+        // Hands the queued writes to JavaFX once per frame
+        private final AnimationTimer flusher = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flush();
+            }
+        };
+
+        public RasterBoard(int width, int height) {
+            this.width = width;
+            this.height = height;
+            pixels = new int[width * height];
+            pixelBuffer = new PixelBuffer<>(width, height, IntBuffer.wrap(pixels),
+                    PixelFormat.getIntArgbPreInstance());
+            view = new ImageView(new WritableImage(pixelBuffer));
+            flusher.start();
+        }
+
+
+        // Enabled with -Dwhiteboard.renderer=software, or automatically on the Prism software pipeline
+        public static boolean isRequested() {
+            return "software".equalsIgnoreCase(System.getProperty("whiteboard.renderer", ""))
+                    || System.getProperty("prism.order", "").startsWith("sw");
+        }
+
+        public ImageView getView() { return view; }
+
+
+        // Applies the queued writes inside updateBuffer and signals the changed region
+        private void flush() {
+            if (pendingWrites.isEmpty()) return;
+            pixelBuffer.updateBuffer(buffer -> {
+                for (Runnable write : pendingWrites) {
+                    write.run();
+                }
+                pendingWrites.clear();
+                if (dirtyMaxX <= dirtyMinX || dirtyMaxY <= dirtyMinY) {
+                    dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+                    dirtyMaxX = dirtyMaxY = Integer.MIN_VALUE;
+                    return Rectangle2D.EMPTY;
+                }
+                Rectangle2D dirty = new Rectangle2D(dirtyMinX, dirtyMinY,
+                        dirtyMaxX - dirtyMinX, dirtyMaxY - dirtyMinY);
+                dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+                dirtyMaxX = dirtyMaxY = Integer.MIN_VALUE;
+                return dirty;
+            });
+        }
+
+        private void queue(Runnable write) {
+            pendingWrites.add(write);
+        }
+
+        private void markDirty(int minX, int minY, int maxX, int maxY) {
+            dirtyMinX = Math.min(dirtyMinX, minX);
+            dirtyMinY = Math.min(dirtyMinY, minY);
+            dirtyMaxX = Math.max(dirtyMaxX, maxX);
+            dirtyMaxY = Math.max(dirtyMaxY, maxY);
+        }
+
+
+        // Converts a color to premultiplied ARGB
+        public static int premultiply(Color color) {
+            double a = color.getOpacity();
+            return ((int) Math.round(a * 255) << 24)
+                    | ((int) Math.round(color.getRed() * a * 255) << 16)
+                    | ((int) Math.round(color.getGreen() * a * 255) << 8)
+                    | (int) Math.round(color.getBlue() * a * 255);
+        }
+
+
+        // Source-over of a premultiplied color scaled by coverage (0-1)
+        private void blend(int index, int color, double coverage) {
+            if (coverage <= 0) return;
+            int scale = (int) (coverage * 256);
+            int sa = ((color >>> 24) * scale) >> 8;
+            if (sa == 255) {
+                pixels[index] = color;
+                return;
+            }
+            int inverse = 255 - sa;
+            int dst = pixels[index];
+            int a = sa + (((dst >>> 24) * inverse) + 127) / 255;
+            int r = ((((color >> 16) & 0xFF) * scale) >> 8) + ((((dst >> 16) & 0xFF) * inverse) + 127) / 255;
+            int g = ((((color >> 8) & 0xFF) * scale) >> 8) + ((((dst >> 8) & 0xFF) * inverse) + 127) / 255;
+            int b = (((color & 0xFF) * scale) >> 8) + (((dst & 0xFF) * inverse) + 127) / 255;
+            pixels[index] = a << 24 | r << 16 | g << 8 | b;
+        }
+
+
+        // Thick line with round caps; coverage from the distance to the segment
+        public void strokeLine(double x0, double y0, double x1, double y1, double lineWidth, Color color) {
+            int premultiplied = premultiply(color);
+            queue(() -> {
+                double half = lineWidth / 2;
+                int minX = clampX(Math.floor(Math.min(x0, x1) - half - 1));
+                int maxX = clampX(Math.ceil(Math.max(x0, x1) + half + 1));
+                int minY = clampY(Math.floor(Math.min(y0, y1) - half - 1));
+                int maxY = clampY(Math.ceil(Math.max(y0, y1) + half + 1));
+                double dx = x1 - x0, dy = y1 - y0;
+                double lengthSquared = dx * dx + dy * dy;
+
+                for (int y = minY; y < maxY; y++) {
+                    for (int x = minX; x < maxX; x++) {
+                        double px = x + 0.5 - x0, py = y + 0.5 - y0;
+                        double t = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+                        double distance = Math.hypot(px - t * dx, py - t * dy);
+                        blend(y * width + x, premultiplied, Math.min(1, half - distance + 0.5));
+                    }
+                }
+                markDirty(minX, minY, maxX, maxY);
+            });
+        }
+
+
+        // Rectangle outline centred on the edges, like GraphicsContext.strokeRect
+        public void strokeRect(double x, double y, double w, double h, double lineWidth, Color color) {
+            double half = lineWidth / 2;
+            fillRect(x - half, y - half, w + lineWidth, lineWidth, color);          // Top
+            fillRect(x - half, y + h - half, w + lineWidth, lineWidth, color);      // Bottom
+            fillRect(x - half, y + half, lineWidth, h - lineWidth, color);          // Left
+            fillRect(x + w - half, y + half, lineWidth, h - lineWidth, color);      // Right
+        }
+
+
+        // Filled axis-aligned rectangle, snapped to whole pixels
+        public void fillRect(double x, double y, double w, double h, Color color) {
+            if (w <= 0 || h <= 0) return;
+            int premultiplied = premultiply(color);
+            queue(() -> {
+                int minX = clampX(Math.round(x)), maxX = clampX(Math.round(x + w));
+                int minY = clampY(Math.round(y)), maxY = clampY(Math.round(y + h));
+                for (int row = minY; row < maxY; row++) {
+                    for (int column = minX; column < maxX; column++) {
+                        blend(row * width + column, premultiplied, 1);
+                    }
+                }
+                markDirty(minX, minY, maxX, maxY);
+            });
+        }
+
+
+        // Circle, filled and/or outlined, with anti-aliased edges
+        public void drawCircle(double cx, double cy, double radius, double lineWidth, Color stroke, Color fill) {
+            int strokeColor = premultiply(stroke);
+            int fillColor = fill == null ? 0 : premultiply(fill);
+            queue(() -> {
+                double half = lineWidth / 2;
+                double outer = radius + half + 1;
+                int minX = clampX(Math.floor(cx - outer)), maxX = clampX(Math.ceil(cx + outer));
+                int minY = clampY(Math.floor(cy - outer)), maxY = clampY(Math.ceil(cy + outer));
+
+                for (int y = minY; y < maxY; y++) {
+                    for (int x = minX; x < maxX; x++) {
+                        double distance = Math.hypot(x + 0.5 - cx, y + 0.5 - cy);
+                        if (fill != null) {
+                            blend(y * width + x, fillColor, Math.min(1, radius - distance + 0.5));
+                        }
+                        blend(y * width + x, strokeColor, Math.min(1, half - Math.abs(distance - radius) + 0.5));
+                    }
+                }
+                markDirty(minX, minY, maxX, maxY);
+            });
+        }
+
+
+        // Draws an image scaled into the given box, nearest neighbour, source-over
+        // The image's pixels are cached, for images drawn over and over like tiles and brush tips.
+        public void drawImage(Image image, double x, double y, double w, double h) {
+            int[] source = pixelsOf(image);
+            if (source == null) return;
+            blit(source, (int) image.getWidth(), (int) image.getHeight(), x, y, w, h);
+        }
+
+
+        // Draws part of an image, read afresh, for one-off draws of images that get reused and rewritten
+        public void drawImage(Image image, double sx, double sy, double sw, double sh,
+                              double x, double y, double w, double h) {
+            int sourceWidth = (int) sw, sourceHeight = (int) sh;
+            if (image.getPixelReader() == null || sourceWidth <= 0 || sourceHeight <= 0) return;
+            int[] source = new int[sourceWidth * sourceHeight];
+            image.getPixelReader().getPixels((int) sx, (int) sy, sourceWidth, sourceHeight,
+                    PixelFormat.getIntArgbPreInstance(), source, 0, sourceWidth);
+            blit(source, sourceWidth, sourceHeight, x, y, w, h);
+        }
+
+        private void blit(int[] source, int sourceWidth, int sourceHeight, double x, double y, double w, double h) {
+            if (w <= 0 || h <= 0) return;
+            queue(() -> {
+                int minX = clampX(Math.floor(x)), maxX = clampX(Math.ceil(x + w));
+                int minY = clampY(Math.floor(y)), maxY = clampY(Math.ceil(y + h));
+                double stepX = sourceWidth / w, stepY = sourceHeight / h;
+                for (int row = minY; row < maxY; row++) {
+                    int sourceRow = (int) ((row + 0.5 - y) * stepY);
+                    if (sourceRow < 0 || sourceRow >= sourceHeight) continue;
+                    for (int column = minX; column < maxX; column++) {
+                        int sourceColumn = (int) ((column + 0.5 - x) * stepX);
+                        if (sourceColumn < 0 || sourceColumn >= sourceWidth) continue;
+                        int src = source[sourceRow * sourceWidth + sourceColumn];
+                        if (src != 0) {
+                            blendPremultiplied(row * width + column, src);
+                        }
+                    }
+                }
+                markDirty(minX, minY, maxX, maxY);
+            });
+        }
+
+        // Reads an image once and keeps its pixels while it is being redrawn
+        private int[] pixelsOf(Image image) {
+            int[] cached = imagePixels.get(image);
+            if (cached != null) return cached;
+            if (image.getPixelReader() == null) return null;  // Failed or still loading
+            int w = (int) image.getWidth();
+            int h = (int) image.getHeight();
+            int[] read = new int[w * h];
+            image.getPixelReader().getPixels(0, 0, w, h, PixelFormat.getIntArgbPreInstance(), read, 0, w);
+            imagePixels.put(image, read);
+            return read;
+        }
+
+
+        // Makes a region fully transparent
+        public void clearRect(double x, double y, double w, double h) {
+            queue(() -> {
+                int minX = clampX(Math.round(x)), maxX = clampX(Math.round(x + w));
+                int minY = clampY(Math.round(y)), maxY = clampY(Math.round(y + h));
+                for (int row = minY; row < maxY; row++) {
+                    Arrays.fill(pixels, row * width + minX, row * width + maxX, 0);
+                }
+                markDirty(minX, minY, maxX, maxY);
+            });
+        }
+
+        public void clear() {
+            pendingWrites.clear();  // Everything queued so far would be wiped anyway
+            clearRect(0, 0, width, height);
+        }
+
+
+        // Blends a full-board premultiplied layer onto the board, source-over or multiply
+        // The layer buffer is reused by the caller, so this is applied right away.
+        public void composite(int[] layer, boolean multiply) {
+            queue(() -> {
+                for (int i = 0; i < pixels.length; i++) {
+                    int src = layer[i];
+                    if (src == 0) continue;
+                    if (!multiply) {
+                        blendPremultiplied(i, src);
+                        continue;
+                    }
+                    int dst = pixels[i];
+                    int sa = src >>> 24, da = dst >>> 24;
+                    int a = sa + da - sa * da / 255;
+                    int result = a << 24;
+                    for (int shift = 16; shift >= 0; shift -= 8) {
+                        int s = (src >> shift) & 0xFF, d = (dst >> shift) & 0xFF;
+                        int c = (s * d + s * (255 - da) + d * (255 - sa)) / 255;
+                        result |= Math.min(255, c) << shift;
+                    }
+                    pixels[i] = result;
+                }
+                markDirty(0, 0, width, height);
+            });
+            flush();
+        }
+
+        private void blendPremultiplied(int index, int src) {
+            int inverse = 255 - (src >>> 24);
+            int dst = pixels[index];
+            int result = 0;
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                int c = ((src >> shift) & 0xFF) + ((((dst >> shift) & 0xFF) * inverse) + 127) / 255;
+                result |= Math.min(255, c) << shift;
+            }
+            pixels[index] = result;
+        }
+
+
+        // Copies the board into a straight (non-premultiplied) ARGB array
+        public void readStraight(int[] target) {
+            flush();
+            for (int i = 0; i < pixels.length; i++) {
+                int p = pixels[i];
+                int a = p >>> 24;
+                if (a == 0 || a == 255) {
+                    target[i] = a == 0 ? 0 : p;
+                } else {
+                    target[i] = a << 24
+                            | Math.min(255, ((p >> 16) & 0xFF) * 255 / a) << 16
+                            | Math.min(255, ((p >> 8) & 0xFF) * 255 / a) << 8
+                            | Math.min(255, (p & 0xFF) * 255 / a);
+                }
+            }
+        }
+
+
+        // Writes a region of a straight ARGB array (stride = board width) back into the board
+        // The source array is reused by the caller, so this is applied right away.
+        public void writeStraight(int[] source, int x, int y, int w, int h) {
+            queue(() -> {
+                for (int row = y; row < y + h; row++) {
+                    for (int i = row * width + x, end = i + w; i < end; i++) {
+                        int p = source[i];
+                        int a = p >>> 24;
+                        pixels[i] = a == 255 ? p : a << 24
+                                | (((p >> 16) & 0xFF) * a + 127) / 255 << 16
+                                | (((p >> 8) & 0xFF) * a + 127) / 255 << 8
+                                | ((p & 0xFF) * a + 127) / 255;
+                    }
+                }
+                markDirty(x, y, x + w, y + h);
+            });
+            flush();
+        }
+
+
+        // Copy of the board for the undo history
+        public Image toImage() {
+            flush();
+            WritableImage copy = new WritableImage(width, height);
+            copy.getPixelWriter().setPixels(0, 0, width, height,
+                    PixelFormat.getIntArgbPreInstance(), pixels, 0, width);
+            return copy;
+        }
+
+
+        // Replaces the board with a history image
+        public void restore(Image image) {
+            pendingWrites.clear();  // Everything queued so far is overwritten
+            queue(() -> {
+                image.getPixelReader().getPixels(0, 0, width, height,
+                        PixelFormat.getIntArgbPreInstance(), pixels, 0, width);
+                markDirty(0, 0, width, height);
+            });
+        }
+
+
+        // Copy of the board for export, without going through the GPU
+        public BufferedImage toBufferedImage() {
+            flush();
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+            System.arraycopy(pixels, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(),
+                    0, pixels.length);
+            return image;
+        }
+
+        private int clampX(double x) {
+            return (int) Math.max(0, Math.min(width, x));
+        }
+
+        private int clampY(double y) {
+            return (int) Math.max(0, Math.min(height, y));
+        }
+    }
+
+
+    // class indexing snap targets in a uniform grid (spatial hash)
+    // A lookup only visits the cells around the pointer, so snapping costs the same
+    // on an empty board and on one with thousands of shapes.
+
+    private static class SnapIndex {
+        private static final double CELL_SIZE = 32;  // Not smaller than the snap radius
+
+        private final Map<Long, List<double[]>> points = new HashMap<>();    // {x, y}
+        private final Map<Long, List<double[]>> segments = new HashMap<>();  // {x1, y1, x2, y2}
+
+        // Every target in the order it was added; only the first `active` ones are in the cells,
+        // so undo and redo move the count instead of forgetting targets
+        private final List<double[]> added = new ArrayList<>();
+        private int active = 0;
+
+        private static long cellKey(int column, int row) {
+            return ((long) column << 32) | (row & 0xFFFFFFFFL);
+        }
+
+        private static int cellOf(double coordinate) {
+            return (int) Math.floor(coordinate / CELL_SIZE);
+        }
+
+        public void addPoint(double x, double y) {
+            append(new double[]{x, y});
+        }
+
+        public void addSegment(double x1, double y1, double x2, double y2) {
+            append(new double[]{x1, y1, x2, y2});
+        }
+
+
+        // Drops targets that were undone, then indexes the new one
+        private void append(double[] target) {
+            added.subList(active, added.size()).clear();
+            added.add(target);
+            active++;
+            index(target);
+        }
+
+        private void index(double[] target) {
+            if (target.length == 2) {
+                points.computeIfAbsent(cellKey(cellOf(target[0]), cellOf(target[1])), key -> new ArrayList<>()).add(target);
+            } else {
+                indexSegment(target);
+            }
+        }
+
+
+        // Number of targets in the index, recorded with each history state
+        public int size() {
+            return active;
+        }
+
+
+        // Keeps only the first count targets, e.g. after undo, or brings undone ones back on redo
+        public void setSize(int count) {
+            count = Math.max(0, Math.min(count, added.size()));
+            if (count == active) return;
+            points.clear();
+            segments.clear();
+            active = count;
+            for (int i = 0; i < active; i++) {
+                index(added.get(i));
+            }
+        }
+
+
+        // Adds the segment to every cell it passes through, walking it in half-cell steps
+        private void indexSegment(double[] segment) {
+            double x1 = segment[0], y1 = segment[1], x2 = segment[2], y2 = segment[3];
+            int steps = (int) Math.ceil(Math.hypot(x2 - x1, y2 - y1) / (CELL_SIZE / 2)) + 1;
+            Set<Long> cells = new HashSet<>();
+            for (int i = 0; i <= steps; i++) {
+                double t = (double) i / steps;
+                cells.add(cellKey(cellOf(x1 + (x2 - x1) * t), cellOf(y1 + (y2 - y1) * t)));
+            }
+            for (long cell : cells) {
+                segments.computeIfAbsent(cell, key -> new ArrayList<>()).add(segment);
+            }
+        }
+
+        public void clear() {
+            points.clear();
+            segments.clear();
+            added.clear();
+            active = 0;
+        }
+
+
+        // Nearest point within radius, else nearest spot on an edge within radius, else null
+        public double[] snap(double x, double y, double radius) {
+            double[] best = null;
+            double bestDistance = radius;
+            int firstColumn = cellOf(x - radius), lastColumn = cellOf(x + radius);
+            int firstRow = cellOf(y - radius), lastRow = cellOf(y + radius);
+
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (double[] point : points.getOrDefault(cellKey(column, row), List.of())) {
+                        double distance = Math.hypot(point[0] - x, point[1] - y);
+                        if (distance <= bestDistance) {
+                            bestDistance = distance;
+                            best = point;
+                        }
+                    }
+                }
+            }
+            if (best != null) {
+                return new double[]{best[0], best[1]};
+            }
+
+            // Points win over edges; fall back to projecting onto nearby edges
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                for (int row = firstRow; row <= lastRow; row++) {
+                    for (double[] segment : segments.getOrDefault(cellKey(column, row), List.of())) {
+                        double dx = segment[2] - segment[0], dy = segment[3] - segment[1];
+                        double lengthSquared = dx * dx + dy * dy;
+                        double t = lengthSquared == 0 ? 0
+                                : Math.max(0, Math.min(1, ((x - segment[0]) * dx + (y - segment[1]) * dy) / lengthSquared));
+                        double px = segment[0] + t * dx, py = segment[1] + t * dy;
+                        double distance = Math.hypot(px - x, py - y);
+                        if (distance <= bestDistance) {
+                            bestDistance = distance;
+                            best = new double[]{px, py};
+                        }
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+
+    // class fitting freehand strokes to simple shapes
+    // Open strokes are tested as a line, then as an arrow; closed strokes as the
+    // rectangle or ellipse of their bounding box, whichever fits better.
+
+    private static class ShapeRecognizer {
+        private static final double MIN_LENGTH = 20;          // Shorter strokes are left alone
+        private static final double LINE_TOLERANCE = 0.06;    // Deviation allowed, relative to length
+        private static final double CLOSED_GAP = 0.2;         // End gap, relative to the bounding box diagonal
+        private static final double MAX_LAPS = 1.5;           // Longer closed strokes are scribbles, not outlines
+        private static final double FIT_TOLERANCE = 0.12;     // Mean error allowed for closed shapes
+
+        // A recognized shape: endpoints for lines and arrows, bounding box otherwise
+        public static class Shape {
+            final String kind;
+            final double x1, y1, x2, y2;
+
+            Shape(String kind, double x1, double y1, double x2, double y2) {
+                this.kind = kind;
+                this.x1 = x1;
+                this.y1 = y1;
+                this.x2 = x2;
+                this.y2 = y2;
+            }
+        }
+
+
+        // points holds x, y pairs; size is the number of values used
+        public static Shape recognize(double[] points, int size) {
+            int count = size / 2;
+            if (count < 3) return null;
+            double pathLength = pathLength(points, 0, count - 1);
+            if (pathLength < MIN_LENGTH) return null;
+
+            double startX = points[0], startY = points[1];
+            double endX = points[size - 2], endY = points[size - 1];
+            double gap = Math.hypot(endX - startX, endY - startY);
+
+            double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+            double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < size; i += 2) {
+                minX = Math.min(minX, points[i]);
+                maxX = Math.max(maxX, points[i]);
+                minY = Math.min(minY, points[i + 1]);
+                maxY = Math.max(maxY, points[i + 1]);
+            }
+
+            if (gap > Math.max(15, Math.hypot(maxX - minX, maxY - minY) * CLOSED_GAP)) {
+                // Open stroke: a straight line...
+                if (isStraight(points, 0, count - 1)) {
+                    return new Shape("Line", startX, startY, endX, endY);
+                }
+                // ...or a straight shaft to the farthest point, followed by a short head
+                int tip = farthestFrom(points, count, startX, startY);
+                double shaft = pathLength(points, 0, tip);
+                double head = pathLength - shaft;
+                if (isStraight(points, 0, tip) && head > shaft * 0.1 && head < shaft * 0.6) {
+                    return new Shape("Arrow", startX, startY, points[tip * 2], points[tip * 2 + 1]);
+                }
+                return null;
+            }
+
+            // Closed stroke: compare against the rectangle and the ellipse of its bounds
+            double halfWidth = (maxX - minX) / 2, halfHeight = (maxY - minY) / 2;
+            if (halfWidth < 5 || halfHeight < 5) return null;
+            if (pathLength > 4 * (halfWidth + halfHeight) * MAX_LAPS) return null;
+            double centreX = minX + halfWidth, centreY = minY + halfHeight;
+            double halfSize = Math.min(halfWidth, halfHeight);
+
+            double ellipseError = 0, rectangleError = 0;
+            for (int i = 0; i < size; i += 2) {
+                double x = points[i], y = points[i + 1];
+                double nx = (x - centreX) / halfWidth, ny = (y - centreY) / halfHeight;
+                ellipseError += Math.abs(Math.hypot(nx, ny) - 1);
+                double edgeDistance = Math.min(Math.min(x - minX, maxX - x), Math.min(y - minY, maxY - y));
+                rectangleError += Math.abs(edgeDistance) / halfSize;
+            }
+            ellipseError /= count;
+            rectangleError /= count;
+
+            if (Math.min(ellipseError, rectangleError) > FIT_TOLERANCE) return null;
+            return new Shape(rectangleError < ellipseError ? "Rectangle" : "Ellipse", minX, minY, maxX, maxY);
+        }
+
+
+        // Whether every point between the two indexes stays close to the chord joining them
+        private static boolean isStraight(double[] points, int from, int to) {
+            double x1 = points[from * 2], y1 = points[from * 2 + 1];
+            double x2 = points[to * 2], y2 = points[to * 2 + 1];
+            double length = Math.hypot(x2 - x1, y2 - y1);
+            if (length < MIN_LENGTH) return false;
+            double tolerance = Math.max(4, length * LINE_TOLERANCE);
+            for (int i = from + 1; i < to; i++) {
+                double deviation = Math.abs((x2 - x1) * (y1 - points[i * 2 + 1])
+                        - (x1 - points[i * 2]) * (y2 - y1)) / length;
+                if (deviation > tolerance) return false;
+            }
+            return true;
+        }
+
+        private static double pathLength(double[] points, int from, int to) {
+            double length = 0;
+            for (int i = from; i < to; i++) {
+                length += Math.hypot(points[i * 2 + 2] - points[i * 2], points[i * 2 + 3] - points[i * 2 + 1]);
+            }
+            return length;
+        }
+
+        private static int farthestFrom(double[] points, int count, double x, double y) {
+            int farthest = 0;
+            double farthestDistance = -1;
+            for (int i = 0; i < count; i++) {
+                double distance = Math.hypot(points[i * 2] - x, points[i * 2 + 1] - y);
+                if (distance > farthestDistance) {
+                    farthestDistance = distance;
+                    farthest = i;
+                }
+            }
+            return farthest;
+        }
+    }
+
+
+    // class streaming a very large image as a multi-resolution tile pyramid
+    // Level 0 is full resolution, each following level halves the resolution.
+    // A background thread decodes the file once, top to bottom, one strip of
+    // TILE_SIZE rows at a time: each strip is cut into level 0 tiles and halved
+    // into the strip of the next level, and so on up to the single-tile overview.
+    // Tiles go to a disk cache; the viewport loads them into a small in-memory LRU,
+    // so heap use stays the same whatever the size of the source file.
+
+    private static class TiledImage {
+        private static final int TILE_SIZE = 512;          // Edge length of a tile in output pixels
+        private static final int MAX_CACHED_TILES = 48;    // Decoded tiles kept in memory
+        private static final int LOADER_THREADS =
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+        private final File source;              // Image file on disk
+        private final int sourceWidth;          // Full resolution width
+        private final int sourceHeight;         // Full resolution height
+        private final int maxLevel;             // Coarsest level, fits in a single tile
+        private final Path cacheDir;            // Disk cache for built tiles
+        private final Runnable onTileReady;     // Called on the FX thread when a tile arrives
+        private final ExecutorService builder;  // Decodes the file once and writes every level
+        private final ExecutorService loader;   // Reads built tiles back from the disk cache
+        private volatile ImageReader reader;    // Source reader of the builder, aborted on dispose
+
+        // Tiles queued or loading (any thread), requested before they were built (any thread)
+        // and loaded tiles (FX thread only)
+        private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+        private final Set<Long> unbuilt = ConcurrentHashMap.newKeySet();
+        private final Map<Long, Image> tiles = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Image> eldest) {
+                return size() > MAX_CACHED_TILES;
+            }
+        };
+        private Image preview;                  // Coarsest level, never evicted
+        private volatile int wantedLevel;       // Level currently on screen, stale requests are dropped
+        private volatile boolean disposed = false;
+
+        // Builder state: the rows of each level still short of a full row of tiles
+        private LevelStrip[] levels;
+
+        public TiledImage(File source, int sourceWidth, int sourceHeight, Runnable onTileReady) throws IOException {
+            this.source = source;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.onTileReady = onTileReady;
+            this.cacheDir = Files.createTempDirectory("whiteboard-tiles");
+
+            int level = 0;
+            while (Math.max(sourceWidth, sourceHeight) > (long) TILE_SIZE << level) {
+                level++;
+            }
+            this.maxLevel = level;
+            this.wantedLevel = level;
+
+            builder = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "tile-builder");
+                thread.setDaemon(true);
+                return thread;
+            });
+            loader = Executors.newFixedThreadPool(LOADER_THREADS, r -> {
+                Thread thread = new Thread(r, "tile-loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            builder.execute(this::buildPyramid);
+            requestTile(maxLevel, 0, 0);  // The overview shows as soon as it is built
+        }
+
+
+        // Reads the image dimensions from the file header without decoding pixels
+        public static int[] readDimensions(File file) throws IOException {
+            try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+                ImageReader reader = createReader(in, file);
+                try {
+                    return new int[]{reader.getWidth(0), reader.getHeight(0)};
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+
+        // Finds a reader for the file and attaches it to the stream
+        private static ImageReader createReader(ImageInputStream in, File file) throws IOException {
+            if (in == null) {
+                throw new IOException("Cannot open " + file.getName());
+            }
+            Iterator<ImageReader> found = ImageIO.getImageReaders(in);
+            if (!found.hasNext()) {
+                throw new IOException("Unsupported image format: " + file.getName());
+            }
+            ImageReader reader = found.next();
+            reader.setInput(in, true, true);
+            return reader;
+        }
+
+
+        // Draws the visible part of the image at the level matching its on-screen size
+        public void draw(ImageSink target, double x, double y, double width, double height,
+                         double viewWidth, double viewHeight) {
+            double scaleX = width / sourceWidth;
+            double scaleY = height / sourceHeight;
+            int level = levelFor(Math.max(scaleX, scaleY));
+            wantedLevel = level;
+
+            // Coarse overview underneath, so missing tiles never leave holes
+            if (preview != null) {
+                target.drawImage(preview, x, y, width, height);
+            }
+            if (level == maxLevel) {
+                return;
+            }
+
+            // Range of tiles intersecting the viewport
+            int span = TILE_SIZE << level;  // Source pixels covered by one tile
+            int columns = (sourceWidth + span - 1) / span;
+            int rows = (sourceHeight + span - 1) / span;
+            int firstColumn = Math.max(0, (int) Math.floor(-x / (span * scaleX)));
+            int lastColumn = Math.min(columns - 1, (int) Math.floor((viewWidth - x) / (span * scaleX)));
+            int firstRow = Math.max(0, (int) Math.floor(-y / (span * scaleY)));
+            int lastRow = Math.min(rows - 1, (int) Math.floor((viewHeight - y) / (span * scaleY)));
+
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    Image tile = tiles.get(key(level, column, row));
+                    if (tile == null) {
+                        requestTile(level, column, row);
+                        continue;
+                    }
+                    int sourceX = column * span;
+                    int sourceY = row * span;
+                    target.drawImage(tile, x + sourceX * scaleX, y + sourceY * scaleY,
+                            Math.min(span, sourceWidth - sourceX) * scaleX,
+                            Math.min(span, sourceHeight - sourceY) * scaleY);
+                }
+            }
+        }
+
+
+        // Picks the finest level whose resolution is still at least the display scale
+        private int levelFor(double scale) {
+            if (scale >= 1) return 0;
+            int level = (int) Math.floor(Math.log(1 / scale) / Math.log(2));
+            return Math.min(level, maxLevel);
+        }
+
+
+        // Packs level and tile coordinates into a single cache key
+        private static long key(int level, int column, int row) {
+            return ((long) level << 48) | ((long) column << 24) | row;
+        }
+
+        private Path tilePath(int level, int column, int row) {
+            return cacheDir.resolve(level + "_" + column + "_" + row + ".png");
+        }
+
+
+        // Queues a tile for loading unless it is already on its way
+        private void requestTile(int level, int column, int row) {
+            long key = key(level, column, row);
+            if (!disposed && pending.add(key)) {
+                loader.execute(() -> loadTile(level, column, row, key));
+            }
+        }
+
+
+        // Loads a tile from the disk cache; one that isn't built yet is loaded by the builder later
+        private void loadTile(int level, int column, int row, long key) {
+            // The user zoomed away before this tile's turn came
+            if (disposed || (level != wantedLevel && level != maxLevel)) {
+                unbuilt.remove(key);
+                pending.remove(key);
+                return;
+            }
+            // Marked before looking, so a tile written in between is still picked up
+            Path cached = tilePath(level, column, row);
+            unbuilt.add(key);
+            if (!Files.exists(cached) || !unbuilt.remove(key)) {
+                return;
+            }
+            try {
+                Image fxTile = SwingFXUtils.toFXImage(ImageIO.read(cached.toFile()), null);
+                Platform.runLater(() -> {
+                    if (disposed) return;
+                    if (level == maxLevel) {
+                        preview = fxTile;
+                    } else {
+                        tiles.put(key, fxTile);
+                    }
+                    pending.remove(key);
+                    onTileReady.run();
+                });
+            } catch (Exception e) {
+                pending.remove(key);
+                System.out.println("Could not load tile " + level + "/" + column + "/" + row + ": " + e.getMessage());
+            }
+        }
+
+
+        // Decodes the source once and writes every tile of every level
+        private void buildPyramid() {
+            try {
+                reader = createReader(ImageIO.createImageInputStream(source), source);
+                if (!readInOnePass()) {
+                    // The reader can't hand out rows in order; read strip by strip instead
+                    reader.dispose();
+                    reader = createReader(ImageIO.createImageInputStream(source), source);
+                    readByStrips();
+                }
+                if (disposed) return;
+                for (LevelStrip level : levels) {
+                    level.flush();  // Partial last rows, finest level first so it feeds the next
+                }
+            } catch (Exception e) {
+                if (!disposed) {
+                    System.out.println("Could not build tiles for " + source.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void startLevels() {
+            levels = new LevelStrip[maxLevel + 1];
+            int width = sourceWidth;
+            for (int level = 0; level <= maxLevel; level++) {
+                levels[level] = new LevelStrip(level, width);
+                width = (width + 1) / 2;
+            }
+        }
+
+
+        // Decodes the whole image in a single read into a destination whose pixel storage is
+        // one strip long and wraps around, consuming each strip as soon as its last row arrives.
+        // Returns false when the reader's pixel layout, buffer or row order doesn't allow it.
+        private boolean readInOnePass() throws IOException {
+            ImageTypeSpecifier type = reader.getImageTypes(0).next();
+            SampleModel layout = type.getSampleModel(sourceWidth, sourceHeight);
+            SampleModel stripLayout = type.getSampleModel(sourceWidth, TILE_SIZE);
+            int stride = scanlineStride(layout);
+            if (stride < 0 || stride != scanlineStride(stripLayout)
+                    || (long) stride * sourceHeight > Integer.MAX_VALUE) {
+                return false;
+            }
+            int banks = layout instanceof ComponentSampleModel
+                    ? Arrays.stream(((ComponentSampleModel) layout).getBankIndices()).max().orElse(0) + 1 : 1;
+            DataBuffer stripBuffer;
+            switch (layout.getDataType()) {
+                case DataBuffer.TYPE_BYTE:
+                    stripBuffer = new DataBufferByte(stride * TILE_SIZE, banks);
+                    break;
+                case DataBuffer.TYPE_USHORT:
+                    stripBuffer = new DataBufferUShort(stride * TILE_SIZE, banks);
+                    break;
+                case DataBuffer.TYPE_INT:
+                    stripBuffer = new DataBufferInt(stride * TILE_SIZE, banks);
+                    break;
+                default:
+                    return false;
+            }
+            ColorModel colors = type.getColorModel();
+            BufferedImage strip = new BufferedImage(colors,
+                    Raster.createWritableRaster(stripLayout, stripBuffer, null), colors.isAlphaPremultiplied(), null);
+            BufferedImage destination = new BufferedImage(colors,
+                    Raster.createWritableRaster(layout, new WrappingBuffer(stripBuffer, stride * sourceHeight), null),
+                    colors.isAlphaPremultiplied(), null);
+
+            startLevels();
+            boolean[] outOfOrder = {false};
+            int[] nextRow = {0};
+            reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+                @Override
+                public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY,
+                                        int width, int height, int periodX, int periodY, int[] bands) {
+                    if (outOfOrder[0] || disposed) return;
+                    int stripStart = nextRow[0] / TILE_SIZE * TILE_SIZE;
+                    int stripEnd = Math.min(sourceHeight, stripStart + TILE_SIZE);
+                    if (minY != nextRow[0] || periodY != 1 || minX != 0 || width != sourceWidth
+                            || minY + height > stripEnd) {
+                        outOfOrder[0] = true;  // Interlaced or bottom-up; the ring would be overwritten
+                        source.abort();
+                        return;
+                    }
+                    nextRow[0] += height;
+                    if (nextRow[0] == stripEnd) {
+                        levels[0].add(toArgb(strip, sourceWidth, stripEnd - stripStart), stripEnd - stripStart);
+                    }
+                }
+
+                @Override
+                public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                                        int minX, int minY, int periodX, int periodY, int[] bands) {
+                }
+
+                @Override
+                public void passComplete(ImageReader source, BufferedImage image) {
+                }
+
+                @Override
+                public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+                                                 int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {
+                }
+
+                @Override
+                public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY,
+                                            int width, int height, int periodX, int periodY, int[] bands) {
+                }
+
+                @Override
+                public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+                }
+            });
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setDestination(destination);
+            try {
+                reader.read(0, param);
+            } catch (RuntimeException e) {
+                return false;  // Some readers insist on their own buffer types
+            }
+            return disposed || (!outOfOrder[0] && nextRow[0] == sourceHeight);
+        }
+
+
+        // Fallback: one source-region read per strip, for readers that don't deliver rows in order
+        private void readByStrips() throws IOException {
+            startLevels();
+            ImageReadParam param = reader.getDefaultReadParam();
+            for (int y = 0; y < sourceHeight && !disposed; y += TILE_SIZE) {
+                int rows = Math.min(TILE_SIZE, sourceHeight - y);
+                param.setSourceRegion(new Rectangle(0, y, sourceWidth, rows));
+                levels[0].add(toArgb(reader.read(0, param), sourceWidth, rows), rows);
+            }
+        }
+
+
+        // Row stride of the sample models the one-pass read understands, -1 for the rest
+        private static int scanlineStride(SampleModel layout) {
+            if (layout instanceof ComponentSampleModel) return ((ComponentSampleModel) layout).getScanlineStride();
+            if (layout instanceof SinglePixelPackedSampleModel) return ((SinglePixelPackedSampleModel) layout).getScanlineStride();
+            if (layout instanceof MultiPixelPackedSampleModel) return ((MultiPixelPackedSampleModel) layout).getScanlineStride();
+            return -1;
+        }
+
+
+        // Converts the first rows of a strip to non-premultiplied ARGB
+        private static int[] toArgb(BufferedImage strip, int width, int rows) {
+            BufferedImage argb = new BufferedImage(width, rows, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = argb.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(strip, 0, 0, null);
+            g.dispose();
+            return ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+        }
+
+
+        // Writes a tile next to its final name and renames it, so loaders never see half a file
+        private void writeTile(int level, int column, int row, BufferedImage tile) throws IOException {
+            Path target = tilePath(level, column, row);
+            Path partial = Files.createTempFile(cacheDir, "tile", ".part");
+            ImageIO.write(tile, "png", partial.toFile());
+            Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            long key = key(level, column, row);
+            if (unbuilt.remove(key)) {
+                loader.execute(() -> loadTile(level, column, row, key));  // It was asked for already
+            }
+        }
+
+
+        // Rows of one level collected until they fill a row of tiles
+        private class LevelStrip {
+            private final int level;
+            private final int width;
+            private final int[] pixels;    // TILE_SIZE rows of ARGB
+            private int rows = 0;          // Rows filled so far
+            private int tileRow = 0;       // Row of tiles the strip becomes
+
+            LevelStrip(int level, int width) {
+                this.level = level;
+                this.width = width;
+                this.pixels = new int[width * TILE_SIZE];
+            }
+
+            // Appends rows of this level's width, writing out every full row of tiles
+            void add(int[] source, int count) {
+                int copied = 0;
+                while (copied < count) {
+                    int take = Math.min(count - copied, TILE_SIZE - rows);
+                    System.arraycopy(source, copied * width, pixels, rows * width, take * width);
+                    rows += take;
+                    copied += take;
+                    if (rows == TILE_SIZE) {
+                        flush();
+                    }
+                }
+            }
+
+            // Writes the collected rows as tiles and passes them on, halved, to the next level
+            void flush() {
+                if (rows == 0 || disposed) return;
+                try {
+                    for (int x = 0, column = 0; x < width; x += TILE_SIZE, column++) {
+                        int tileWidth = Math.min(TILE_SIZE, width - x);
+                        BufferedImage tile = new BufferedImage(tileWidth, rows, BufferedImage.TYPE_INT_ARGB);
+                        tile.setRGB(0, 0, tileWidth, rows, pixels, x, width);
+                        writeTile(level, column, tileRow, tile);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (level < maxLevel) {
+                    levels[level + 1].add(halve(pixels, width, rows), (rows + 1) / 2);
+                }
+                rows = 0;
+                tileRow++;
+            }
+        }
+
+
+        // Averages 2x2 blocks; odd edges reuse their last row or column
+        private static int[] halve(int[] pixels, int width, int rows) {
+            int halfWidth = (width + 1) / 2;
+            int halfRows = (rows + 1) / 2;
+            int[] half = new int[halfWidth * halfRows];
+            for (int y = 0; y < halfRows; y++) {
+                int top = 2 * y * width;
+                int bottom = Math.min(2 * y + 1, rows - 1) * width;
+                for (int x = 0; x < halfWidth; x++) {
+                    int left = 2 * x;
+                    int right = Math.min(2 * x + 1, width - 1);
+                    int a = pixels[top + left], b = pixels[top + right];
+                    int c = pixels[bottom + left], d = pixels[bottom + right];
+                    int result = 0;
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF)
+                                + ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+                        result |= ((sum + 2) >> 2) << shift;
+                    }
+                    half[y * halfWidth + x] = result;
+                }
+            }
+            return half;
+        }
+
+
+        // Pixel storage that repeats a strip buffer down the whole image
+        private static class WrappingBuffer extends DataBuffer {
+            private final DataBuffer strip;
+            private final int period;
+
+            WrappingBuffer(DataBuffer strip, int size) {
+                super(strip.getDataType(), size, strip.getNumBanks());
+                this.strip = strip;
+                this.period = strip.getSize();
+            }
+
+            @Override
+            public int getElem(int bank, int i) {
+                return strip.getElem(bank, i % period);
+            }
+
+            @Override
+            public void setElem(int bank, int i, int value) {
+                strip.setElem(bank, i % period, value);
+            }
+        }
+
+
+        // Stops building and loading, then releases the reader and deletes the disk cache in the background
+        public void dispose() {
+            stopWork();
+            Thread cleanup = new Thread(() -> releaseResources(10), "tile-cache-cleanup");
+            cleanup.setDaemon(true);
+            cleanup.start();
+        }
+
+
+        // Like dispose(), but cleans up before returning, for use at application exit
+        public void close() {
+            stopWork();
+            releaseResources(2);
+        }
+
+        private void stopWork() {
+            disposed = true;
+            ImageReader current = reader;
+            if (current != null) {
+                current.abort();  // Ends a read in progress at the next row
+            }
+            builder.shutdownNow();
+            loader.shutdownNow();
+        }
+
+
+        // Waits for the worker threads, then closes the reader and deletes the tile cache
+        private void releaseResources(long timeoutSeconds) {
+            try {
+                builder.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+                loader.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            ImageReader current = reader;
+            if (current != null) {
+                try {
+                    Object input = current.getInput();
+                    if (input instanceof ImageInputStream) ((ImageInputStream) input).close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with a stream that fails to close
+                }
+                current.dispose();
+            }
+            try (Stream<Path> files = Files.walk(cacheDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException ignored) {
+                // Leftovers are in the temp directory and get cleaned by the OS
+            }
+        }
+    }
+
+
+    // class stamping brush tips along strokes
+    // Each tip is rasterized once per brush, size, color and hardness and kept in a
+    // bounded cache. Stamps collected from mouse events are drawn once per pulse.
+
+    private static class BrushEngine {
+        public static final String[] BRUSHES = {"Solid", "Soft Round", "Marker", "Highlighter", "Calligraphy"};
+        private static final int MAX_CACHED_TIPS = 32;  // Tips kept between strokes
+        private static final double NIB_ANGLE = Math.toRadians(45);  // Calligraphy pen angle
+
+        // Tips by brush, size, color and hardness, least recently used evicted first
+        private final Map<String, WritableImage> tipCache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, WritableImage> eldest) {
+                return size() > MAX_CACHED_TIPS;
+            }
+        };
+
+        // Stroke state
+        private ImageSink target;             // Where stamps are drawn
+        private WritableImage tip;            // Tip of the current stroke
+        private double spacing;               // Distance between stamps in pixels
+        private double lastX, lastY;          // End of the stroke so far
+        private double travelled;             // Distance since the last stamp
+        private double[] pending = new double[256];  // Stamp centres waiting for the next pulse
+        private int pendingSize = 0;
+
+        // Draws the pending stamps once per frame, however many mouse events arrived
+        private final AnimationTimer flusher = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                flush();
+            }
+        };
+
+
+        // Starts a stroke with the given brush at (x, y)
+        public void begin(ImageSink target, String brush, double size, Color color, double hardness,
+                          double x, double y) {
+            this.target = target;
+            this.tip = getTip(brush, (int) Math.round(size), color, Math.round(hardness * 20) / 20.0);
+            this.spacing = Math.max(1, size * spacingFor(brush));
+            lastX = x;
+            lastY = y;
+            travelled = 0;
+            pendingSize = 0;
+            addStamp(x, y);
+            flusher.start();
+        }
+
+
+        // Extends the stroke to (x, y), placing stamps every spacing pixels
+        public void strokeTo(double x, double y) {
+            if (target == null) return;
+            double dx = x - lastX;
+            double dy = y - lastY;
+            double distance = Math.hypot(dx, dy);
+            if (distance == 0) return;
+
+            double position = spacing - travelled;
+            while (position <= distance) {
+                addStamp(lastX + dx * position / distance, lastY + dy * position / distance);
+                position += spacing;
+            }
+            travelled = distance - (position - spacing);
+            lastX = x;
+            lastY = y;
+        }
+
+
+        // Draws the remaining stamps and ends the stroke
+        public void end() {
+            flusher.stop();
+            flush();
+            target = null;
+        }
+
+
+        private void addStamp(double x, double y) {
+            if (pendingSize + 2 > pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            pending[pendingSize++] = x;
+            pending[pendingSize++] = y;
+        }
+
+
+        // Draws all stamps queued since the last pulse
+        private void flush() {
+            if (target == null || pendingSize == 0) return;
+            double size = tip.getWidth();
+            double half = size / 2;
+            for (int i = 0; i < pendingSize; i += 2) {
+                target.drawImage(tip, pending[i] - half, pending[i + 1] - half, size, size);
+            }
+            pendingSize = 0;
+        }
+
+
+        // Stamp spacing as a fraction of the brush size
+        private static double spacingFor(String brush) {
+            switch (brush) {
+                case "Soft Round": return 0.15;
+                case "Calligraphy": return 0.05;  // Thin nib needs dense stamps to stay solid
+                default: return 0.1;
+            }
+        }
+
+
+        // Returns the cached tip, rasterizing it on first use
+        private WritableImage getTip(String brush, int size, Color color, double hardness) {
+            String key = brush + "|" + size + "|" + PixelTools.toArgb(color) + "|" + hardness;
+            WritableImage cached = tipCache.get(key);
+            if (cached == null) {
+                cached = rasterizeTip(brush, Math.max(1, size), color, hardness);
+                tipCache.put(key, cached);
+            }
+            return cached;
+        }
+
+
+        // Renders the tip shape into an ARGB buffer, coverage scaled by the color's opacity
+        private static WritableImage rasterizeTip(String brush, int size, Color color, double hardness) {
+            int dimension = size + 2;  // One pixel border for anti-aliasing
+            double radius = size / 2.0;
+            double centre = dimension / 2.0;
+            int rgb = PixelTools.toArgb(color) & 0xFFFFFF;
+            double cos = Math.cos(NIB_ANGLE), sin = Math.sin(NIB_ANGLE);
+            int[] pixels = new int[dimension * dimension];
+
+            for (int row = 0; row < dimension; row++) {
+                for (int column = 0; column < dimension; column++) {
+                    double dx = column + 0.5 - centre;
+                    double dy = row + 0.5 - centre;
+                    double coverage;
+                    switch (brush) {
+                        case "Soft Round": {
+                            // Solid core up to the hardness, then a smooth falloff to the edge
+                            double r = Math.hypot(dx, dy) / radius;
+                            double t = r >= 1 ? 0 : r <= hardness ? 1 : (1 - r) / (1 - hardness);
+                            coverage = t * t * (3 - 2 * t);
+                            break;
+                        }
+                        case "Highlighter":
+                            // Square chisel tip
+                            coverage = clamp01(radius - Math.abs(dx) + 0.5) * clamp01(radius - Math.abs(dy) + 0.5);
+                            break;
+                        case "Calligraphy": {
+                            // Flat ellipse rotated to the nib angle
+                            double u = (dx * cos + dy * sin) / radius;
+                            double v = (-dx * sin + dy * cos) / (radius * 0.25);
+                            double r = Math.sqrt(u * u + v * v);
+                            coverage = clamp01((1 - r) * radius * 0.25 + 0.5);
+                            break;
+                        }
+                        default:
+                            // Marker: hard round tip with an anti-aliased edge
+                            coverage = clamp01(radius - Math.hypot(dx, dy) + 0.5);
+                            break;
+                    }
+                    int alpha = (int) Math.round(coverage * color.getOpacity() * 255);
+                    pixels[row * dimension + column] = alpha == 0 ? 0 : alpha << 24 | rgb;
+                }
+            }
+
+            WritableImage image = new WritableImage(dimension, dimension);
+            image.getPixelWriter().setPixels(0, 0, dimension, dimension,
+                    PixelFormat.getIntArgbInstance(), pixels, 0, dimension);
+            return image;
+        }
+
+        private static double clamp01(double value) {
+            return value < 0 ? 0 : Math.min(1, value);
+        }
+    }
+
+
+    // class holding selected pixels in buffers that are reused between selections
+    // Buffers only grow, so selecting and moving regions doesn't allocate per drag.
+
+    private static class PixelRegion {
+        private int[] pixels = new int[0];       // Selected pixels, non-premultiplied ARGB, stride = width
+        private boolean[] mask = new boolean[0]; // Which pixels belong to the selection
+        private WritableImage image;             // Drawable copy, may be larger than the region
+        private int width, height;               // Size of the current region
+
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public Image getImage() { return image; }
+
+
+        // Grows the pooled buffers if the region doesn't fit
+        private void ensureCapacity(int newWidth, int newHeight) {
+            width = newWidth;
+            height = newHeight;
+            if (pixels.length < width * height) {
+                pixels = new int[width * height];
+                mask = new boolean[width * height];
+            }
+            if (image == null || image.getWidth() < width || image.getHeight() < height) {
+                int imageWidth = image == null ? width : Math.max(width, (int) image.getWidth());
+                int imageHeight = image == null ? height : Math.max(height, (int) image.getHeight());
+                image = new WritableImage(imageWidth, imageHeight);
+            }
+        }
+
+
+        // Copies a region of the board; with a polygon (board coordinates), only pixels inside it
+        public void capture(int[] board, int stride, int left, int top, int regionWidth, int regionHeight,
+                            double[] polygon) {
+            ensureCapacity(regionWidth, regionHeight);
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(board, (top + row) * stride + left, pixels, row * width, width);
+            }
+            if (polygon == null) {
+                Arrays.fill(mask, 0, width * height, true);
+            } else {
+                fillPolygonMask(polygon, left, top);
+                for (int i = 0; i < width * height; i++) {
+                    if (!mask[i]) pixels[i] = 0;
+                }
+            }
+            updateImage();
+        }
+
+
+        // Loads an external image (e.g. from the clipboard) as a fully selected region
+        public void load(Image source) {
+            ensureCapacity((int) source.getWidth(), (int) source.getHeight());
+            source.getPixelReader().getPixels(0, 0, width, height,
+                    PixelFormat.getIntArgbInstance(), pixels, 0, width);
+            Arrays.fill(mask, 0, width * height, true);
+            updateImage();
+        }
+
+
+        // Even-odd scanline fill of the polygon into the mask, sampling pixel centres
+        private void fillPolygonMask(double[] polygon, int left, int top) {
+            Arrays.fill(mask, 0, width * height, false);
+            int points = polygon.length / 2;
+            double[] crossings = new double[points];
+            for (int row = 0; row < height; row++) {
+                double y = top + row + 0.5;
+                int count = 0;
+                for (int i = 0, j = points - 1; i < points; j = i++) {
+                    double yi = polygon[i * 2 + 1], yj = polygon[j * 2 + 1];
+                    if ((yi <= y) != (yj <= y)) {
+                        double xi = polygon[i * 2], xj = polygon[j * 2];
+                        crossings[count++] = xi + (y - yi) / (yj - yi) * (xj - xi) - left;
+                    }
+                }
+                Arrays.sort(crossings, 0, count);
+                for (int c = 0; c + 1 < count; c += 2) {
+                    int from = Math.max(0, (int) Math.ceil(crossings[c] - 0.5));
+                    int to = Math.min(width - 1, (int) Math.floor(crossings[c + 1] - 0.5));
+                    if (from <= to) Arrays.fill(mask, row * width + from, row * width + to + 1, true);
+                }
+            }
+        }
+
+
+        // Pushes the pixel buffer into the drawable image
+        private void updateImage() {
+            image.getPixelWriter().setPixels(0, 0, width, height,
+                    PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        }
+
+
+        // Whether a point relative to the region's top-left is part of the selection
+        public boolean contains(int x, int y) {
+            return x >= 0 && y >= 0 && x < width && y < height && mask[y * width + x];
+        }
+
+
+        // Makes the selected pixels transparent on the board at the given position
+        public void clearFrom(int[] board, int stride, int left, int top) {
+            for (int row = 0; row < height; row++) {
+                int boardRow = (top + row) * stride + left;
+                for (int column = 0; column < width; column++) {
+                    if (mask[row * width + column]) board[boardRow + column] = 0;
+                }
+            }
+        }
+
+
+        // Exact-size copy of the region, e.g. for the system clipboard
+        public WritableImage toImage() {
+            WritableImage copy = new WritableImage(width, height);
+            copy.getPixelWriter().setPixels(0, 0, width, height,
+                    PixelFormat.getIntArgbInstance(), pixels, 0, width);
+            return copy;
+        }
+    }
+
+
+    // class with pixel operations on plain int[] ARGB buffers
+    // All methods work on non-premultiplied ARGB, row-major with the given stride.
+
+    private static class PixelTools {
+        public static final String[] EFFECTS = {"Blur", "Brightness", "Threshold"};
+        private static final int BAND_ROWS = 32;  // Rows per parallel task
+        private static final ForkJoinPool POOL = ForkJoinPool.commonPool();
+
+        // Converts a JavaFX color to a packed ARGB int
+        public static int toArgb(Color color) {
+            return ((int) Math.round(color.getOpacity() * 255) << 24)
+                    | ((int) Math.round(color.getRed() * 255) << 16)
+                    | ((int) Math.round(color.getGreen() * 255) << 8)
+                    | (int) Math.round(color.getBlue() * 255);
+        }
+
+
+        // Scanline flood fill from (x, y) over pixels within tolerance of the start pixel
+        // return dirty bounds {minX, minY, maxX, maxY}, or null if nothing changed
+        public static int[] floodFill(int[] pixels, int width, int height, int x, int y, int color, int tolerance) {
+            int target = pixels[y * width + x];
+            if (target == color) return null;
+
+            long[] visited = new long[(width * height + 63) / 64];
+            int[] stack = new int[256];  // Packed (x, y) seeds, one per span
+            int size = 0;
+            stack[size++] = y * width + x;
+            int minX = x, minY = y, maxX = x, maxY = y;
+
+            while (size > 0) {
+                int seed = stack[--size];
+                int row = seed / width;
+                int rowStart = row * width;
+                if (isVisited(visited, seed) || !matches(pixels[seed], target, tolerance)) continue;
+
+                // Extend the span left and right as far as the color matches
+                int left = seed - rowStart;
+                int right = left;
+                while (left > 0 && !isVisited(visited, rowStart + left - 1)
+                        && matches(pixels[rowStart + left - 1], target, tolerance)) left--;
+                while (right < width - 1 && !isVisited(visited, rowStart + right + 1)
+                        && matches(pixels[rowStart + right + 1], target, tolerance)) right++;
+
+                for (int i = rowStart + left; i <= rowStart + right; i++) {
+                    pixels[i] = color;
+                    visited[i >>> 6] |= 1L << i;
+                }
+                minX = Math.min(minX, left);
+                maxX = Math.max(maxX, right);
+                minY = Math.min(minY, row);
+                maxY = Math.max(maxY, row);
+
+                // Seed one point per matching run in the rows above and below
+                for (int next = row - 1; next <= row + 1; next += 2) {
+                    if (next < 0 || next >= height) continue;
+                    int nextStart = next * width;
+                    boolean inRun = false;
+                    for (int i = left; i <= right; i++) {
+                        int index = nextStart + i;
+                        boolean open = !isVisited(visited, index) && matches(pixels[index], target, tolerance);
+                        if (open && !inRun) {
+                            if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+                            stack[size++] = index;
+                        }
+                        inRun = open;
+                    }
+                }
+            }
+            return new int[]{minX, minY, maxX, maxY};
+        }
+
+        private static boolean isVisited(long[] visited, int index) {
+            return (visited[index >>> 6] & (1L << index)) != 0;
+        }
+
+        // Whether every channel is within tolerance of the target
+        private static boolean matches(int pixel, int target, int tolerance) {
+            if (pixel == target) return true;
+            return Math.abs((pixel >>> 24) - (target >>> 24)) <= tolerance
+                    && Math.abs(((pixel >> 16) & 0xFF) - ((target >> 16) & 0xFF)) <= tolerance
+                    && Math.abs(((pixel >> 8) & 0xFF) - ((target >> 8) & 0xFF)) <= tolerance
+                    && Math.abs((pixel & 0xFF) - (target & 0xFF)) <= tolerance;
+        }
+
+
+        // Applies the named effect to a region, processing row bands in parallel
+        // amount is the blur radius, the brightness offset (negative darkens) or the threshold cutoff
+        public static void applyEffect(String effect, int[] pixels, int stride,
+                                       int x, int y, int width, int height, int amount) {
+            switch (effect) {
+                case "Blur":
+                    blur(pixels, stride, x, y, width, height, amount);
+                    break;
+                case "Brightness":
+                    forEachBand(y, y + height, (from, to) -> {
+                        for (int row = from; row < to; row++) {
+                            for (int i = row * stride + x, end = i + width; i < end; i++) {
+                                int p = pixels[i];
+                                pixels[i] = (p & 0xFF000000)
+                                        | clamp(((p >> 16) & 0xFF) + amount) << 16
+                                        | clamp(((p >> 8) & 0xFF) + amount) << 8
+                                        | clamp((p & 0xFF) + amount);
+                            }
+                        }
+                    });
+                    break;
+                case "Threshold":
+                    forEachBand(y, y + height, (from, to) -> {
+                        for (int row = from; row < to; row++) {
+                            for (int i = row * stride + x, end = i + width; i < end; i++) {
+                                int p = pixels[i];
+                                int luma = (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 + (p & 0xFF) * 29) >> 8;
+                                pixels[i] = (p & 0xFF000000) | (luma >= amount ? 0xFFFFFF : 0);
+                            }
+                        }
+                    });
+                    break;
+            }
+        }
+
+
+        // Separable box blur; a horizontal then a vertical pass, each split into row bands
+        private static void blur(int[] pixels, int stride, int x, int y, int width, int height, int radius) {
+            int[] temp = new int[width * height];
+
+            // Horizontal pass: region of pixels -> temp
+            forEachBand(0, height, (from, to) -> {
+                for (int row = from; row < to; row++) {
+                    blurLine(pixels, (y + row) * stride + x, 1, temp, row * width, 1, width, radius);
+                }
+            });
+            // Vertical pass: temp -> region of pixels, one band of columns per task
+            forEachBand(0, width, (from, to) -> {
+                for (int column = from; column < to; column++) {
+                    blurLine(temp, column, width, pixels, y * stride + x + column, stride, height, radius);
+                }
+            });
+        }
+
+
+        // Running-sum box blur of one line; colors are weighted by alpha to avoid dark fringes
+        private static void blurLine(int[] src, int srcStart, int srcStep,
+                                     int[] dst, int dstStart, int dstStep, int length, int radius) {
+            long a = 0, r = 0, g = 0, b = 0;
+            int count = 0;
+            // Prime the window with the first radius pixels
+            for (int i = 0; i < Math.min(radius, length); i++) {
+                int p = src[srcStart + i * srcStep];
+                int alpha = p >>> 24;
+                a += alpha;
+                r += ((p >> 16) & 0xFF) * alpha;
+                g += ((p >> 8) & 0xFF) * alpha;
+                b += (p & 0xFF) * alpha;
+                count++;
+            }
+            for (int i = 0; i < length; i++) {
+                int enter = i + radius;
+                if (enter < length) {
+                    int p = src[srcStart + enter * srcStep];
+                    int alpha = p >>> 24;
+                    a += alpha;
+                    r += ((p >> 16) & 0xFF) * alpha;
+                    g += ((p >> 8) & 0xFF) * alpha;
+                    b += (p & 0xFF) * alpha;
+                    count++;
+                }
+                int leave = i - radius - 1;
+                if (leave >= 0) {
+                    int p = src[srcStart + leave * srcStep];
+                    int alpha = p >>> 24;
+                    a -= alpha;
+                    r -= ((p >> 16) & 0xFF) * alpha;
+                    g -= ((p >> 8) & 0xFF) * alpha;
+                    b -= (p & 0xFF) * alpha;
+                    count--;
+                }
+                dst[dstStart + i * dstStep] = a == 0 ? 0
+                        : (int) (a / count) << 24 | (int) (r / a) << 16 | (int) (g / a) << 8 | (int) (b / a);
+            }
+        }
+
+        private static int clamp(int value) {
+            return value < 0 ? 0 : Math.min(255, value);
+        }
+
+
+        // Work on the rows [from, to) of a band
+        private interface BandOperation {
+            void apply(int from, int to);
+        }
+
+        // Runs the operation over [from, to) split into bands on the fork-join pool
+        private static void forEachBand(int from, int to, BandOperation operation) {
+            POOL.invoke(new BandTask(from, to, operation));
+        }
+
+        // Recursively halves the range until bands are small enough to run directly
+        private static class BandTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int from, to;
+            private final BandOperation operation;
+
+            BandTask(int from, int to, BandOperation operation) {
+                this.from = from;
+                this.to = to;
+                this.operation = operation;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= BAND_ROWS) {
+                    operation.apply(from, to);
+                } else {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new BandTask(from, middle, operation), new BandTask(middle, to, operation));
+                }
+            }
+        }
+    }
+
+
+    // class exporting the board's history as a timelapse
+    // Every history state is one recorded operation. A coordinator thread hands frames to
+    // a pool of render workers through a bounded window of futures and encodes them in
+    // order, so only a handful of frames exist at any time, however long the session.
+
+    private static class TimelapseExporter {
+        private static final int OPERATIONS_PER_FRAME = 3;   // History states replayed per frame
+        private static final int MAX_FRAME_WIDTH = 640;      // Frames are scaled down to this width
+        private static final int FRAME_DELAY_CS = 10;        // GIF frame delay in hundredths of a second
+        private static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        private static final int WINDOW = WORKERS * 2;       // Frames in flight between the stages
+
+        // 4x4 Bayer matrix for ordered dithering to the GIF palette
+        private static final int[] BAYER = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+        private static final IndexColorModel PALETTE = createPalette();
+
+        private final List<Image> history;   // Board states, oldest first
+        private final File target;           // GIF file, or the first name of the PNG sequence
+        private final boolean gif;
+        private final int sourceWidth, sourceHeight;
+        private final int frameWidth, frameHeight;
+
+        public TimelapseExporter(List<Image> history, File target, boolean gif) {
+            this.history = history;
+            this.target = target;
+            this.gif = gif;
+            sourceWidth = (int) history.get(0).getWidth();
+            sourceHeight = (int) history.get(0).getHeight();
+            frameWidth = Math.min(sourceWidth, MAX_FRAME_WIDTH);
+            frameHeight = Math.max(1, sourceHeight * frameWidth / sourceWidth);
+        }
+
+
+        // Runs the export in the background and reports the result on the FX thread
+        public void start() {
+            Thread coordinator = new Thread(() -> {
+                try {
+                    int frames = export();
+                    Platform.runLater(() -> showInfo("Timelapse", "Exported " + frames + " frames to " + describeOutput(frames)));
+                } catch (Exception e) {
+                    Platform.runLater(() -> showError("Timelapse Error", "Could not export timelapse: " + e.getMessage()));
+                }
+            }, "timelapse-export");
+            coordinator.setDaemon(true);
+            coordinator.start();
+        }
+
+
+        // History indexes to render: every OPERATIONS_PER_FRAME-th state, always ending with the last
+        private List<Integer> frameIndexes() {
+            List<Integer> indexes = new ArrayList<>();
+            for (int i = 0; i < history.size(); i += OPERATIONS_PER_FRAME) {
+                indexes.add(i);
+            }
+            if (indexes.get(indexes.size() - 1) != history.size() - 1) {
+                indexes.add(history.size() - 1);
+            }
+            return indexes;
+        }
+
+
+        // Renders on the worker pool and encodes in order; returns the number of frames
+        private int export() throws Exception {
+            List<Integer> indexes = frameIndexes();
+            ExecutorService workers = Executors.newFixedThreadPool(WORKERS, r -> {
+                Thread thread = new Thread(r, "timelapse-render");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ArrayBlockingQueue<Future<BufferedImage>> inFlight = new ArrayBlockingQueue<>(WINDOW);
+            ImageWriter writer = gif ? ImageIO.getImageWritersByFormatName("gif").next() : null;
+            if (gif) {
+                Files.deleteIfExists(target.toPath());  // The output stream doesn't truncate
+            }
+
+            try (ImageOutputStream out = gif ? ImageIO.createImageOutputStream(target) : null) {
+                if (gif) {
+                    writer.setOutput(out);
+                    writer.prepareWriteSequence(null);
+                }
+                int written = 0;
+                for (int frame = 0; frame < indexes.size(); frame++) {
+                    int historyIndex = indexes.get(frame);
+                    int frameNumber = frame + 1;
+                    if (inFlight.remainingCapacity() == 0) {
+                        encode(writer, inFlight.take().get(), written++);
+                    }
+                    inFlight.put(workers.submit(() -> renderFrame(historyIndex, frameNumber)));
+                }
+                while (!inFlight.isEmpty()) {
+                    encode(writer, inFlight.take().get(), written++);
+                }
+                if (gif) {
+                    writer.endWriteSequence();
+                }
+                return indexes.size();
+            } finally {
+                workers.shutdownNow();
+                if (writer != null) writer.dispose();
+            }
+        }
+
+
+        // Scales one history state over a white background; PNG frames are also written here
+        private BufferedImage renderFrame(int historyIndex, int frameNumber) throws IOException {
+            int[] source = new int[sourceWidth * sourceHeight];
+            history.get(historyIndex).getPixelReader().getPixels(0, 0, sourceWidth, sourceHeight,
+                    PixelFormat.getIntArgbInstance(), source, 0, sourceWidth);
+
+            int[] frame = new int[frameWidth * frameHeight];
+            for (int y = 0; y < frameHeight; y++) {
+                int sourceRow = (y * sourceHeight / frameHeight) * sourceWidth;
+                for (int x = 0; x < frameWidth; x++) {
+                    frame[y * frameWidth + x] = overWhite(source[sourceRow + x * sourceWidth / frameWidth]);
+                }
+            }
+
+            if (gif) {
+                return toIndexed(frame);
+            }
+            BufferedImage image = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, frameWidth, frameHeight, frame, 0, frameWidth);
+            ImageIO.write(image, "png", sequenceFile(frameNumber));
+            return null;
+        }
+
+
+        // The GIF file, or the PNG sequence as its first and last file in their directory
+        private String describeOutput(int frames) {
+            if (gif) {
+                return target.toString();
+            }
+            String first = sequenceFile(1).getName();
+            String last = sequenceFile(frames).getName();
+            String names = frames > 1 ? first + " ... " + last : first;
+            return names + " in " + target.getAbsoluteFile().getParent();
+        }
+
+
+        // board.png -> board_0001.png, board_0002.png, ...
+        private File sequenceFile(int frameNumber) {
+            String name = target.getName();
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            return new File(target.getParentFile(), String.format("%s_%04d.png", base, frameNumber));
+        }
+
+
+        // Flattens a non-premultiplied ARGB pixel onto white
+        private static int overWhite(int argb) {
+            int a = argb >>> 24;
+            if (a == 255) return argb & 0xFFFFFF;
+            int inverse = 255 - a;
+            return (((argb >> 16) & 0xFF) * a / 255 + inverse) << 16
+                    | (((argb >> 8) & 0xFF) * a / 255 + inverse) << 8
+                    | ((argb & 0xFF) * a / 255 + inverse);
+        }
+
+
+        // Maps RGB pixels to the 6x6x6 palette with ordered dithering
+        private BufferedImage toIndexed(int[] rgb) {
+            BufferedImage image = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+            byte[] indexes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < frameHeight; y++) {
+                for (int x = 0; x < frameWidth; x++) {
+                    int p = rgb[y * frameWidth + x];
+                    int threshold = BAYER[(y & 3) * 4 + (x & 3)] * 51 / 16 - 25;  // About one palette step
+                    int r = levelOf(((p >> 16) & 0xFF) + threshold);
+                    int g = levelOf(((p >> 8) & 0xFF) + threshold);
+                    int b = levelOf((p & 0xFF) + threshold);
+                    indexes[y * frameWidth + x] = (byte) (r * 36 + g * 6 + b);
+                }
+            }
+            return image;
+        }
+
+        private static int levelOf(int value) {
+            return Math.max(0, Math.min(5, (value + 25) / 51));
+        }
+
+        private static IndexColorModel createPalette() {
+            byte[] r = new byte[216], g = new byte[216], b = new byte[216];
+            for (int i = 0; i < 216; i++) {
+                r[i] = (byte) (i / 36 * 51);
+                g[i] = (byte) (i / 6 % 6 * 51);
+                b[i] = (byte) (i % 6 * 51);
+            }
+            return new IndexColorModel(8, 216, r, g, b);
+        }
+
+
+        // Appends a GIF frame with its delay; the first frame also sets the animation to loop
+        private void encode(ImageWriter writer, BufferedImage frame, int index) throws IOException {
+            if (!gif) return;  // PNG frames were written by the workers
+            IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(frame), null);
+            String format = metadata.getNativeMetadataFormatName();
+            IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+            IIOMetadataNode control = childNode(root, "GraphicControlExtension");
+            control.setAttribute("disposalMethod", "none");
+            control.setAttribute("userInputFlag", "FALSE");
+            control.setAttribute("transparentColorFlag", "FALSE");
+            control.setAttribute("delayTime", Integer.toString(FRAME_DELAY_CS));
+            control.setAttribute("transparentColorIndex", "0");
+
+            if (index == 0) {
+                IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+                loop.setAttribute("applicationID", "NETSCAPE");
+                loop.setAttribute("authenticationCode", "2.0");
+                loop.setUserObject(new byte[]{1, 0, 0});  // Loop forever
+                childNode(root, "ApplicationExtensions").appendChild(loop);
+            }
+            metadata.setFromTree(format, root);
+            writer.writeToSequence(new IIOImage(frame, null, metadata), null);
+        }
+
+        private static IIOMetadataNode childNode(IIOMetadataNode root, String name) {
+            for (int i = 0; i < root.getLength(); i++) {
+                if (root.item(i).getNodeName().equals(name)) return (IIOMetadataNode) root.item(i);
+            }
+            IIOMetadataNode node = new IIOMetadataNode(name);
+            root.appendChild(node);
+            return node;
+        }
+    }
+
+
+    //  class handling media (audio/video) playback
 
     private static class MediaHandler {
         private MediaPlayer mediaPlayer;  // Current media player instance
@@ -719,13 +3559,47 @@ public class HelloApplication extends Application {
                 Label currentTimeLabel = new Label("00:00");
                 Label totalTimeLabel = new Label("00:00");
 
-                // Update current time during playback
-                mediaPlayer.currentTimeProperty().addListener((observable, oldValue, newValue) -> {
-                    if (!timeSlider.isValueChanging()) {
-                        timeSlider.setValue(newValue.toSeconds());
+                // Video only: annotation overlay, scrubbing thumbnails and the ink color
+                MediaPlayer player = mediaPlayer;
+                VideoAnnotationLayer annotations = isVideo ? new VideoAnnotationLayer(player) : null;
+                FrameStrip frameStrip = isVideo ? new FrameStrip(media) : null;
+                ImageView scrubPreview = new ImageView();
+                scrubPreview.setVisible(false);
+                ColorPicker inkPicker = new ColorPicker(Color.RED);
+                Slider lingerSlider = new Slider(0, 10, VideoAnnotationLayer.DEFAULT_LINGER_SECONDS);
+                lingerSlider.setShowTickLabels(true);
+                lingerSlider.setMajorTickUnit(5);
+                if (annotations != null) {
+                    annotations.inkProperty().bind(inkPicker.valueProperty());
+                    annotations.lingerProperty().bind(lingerSlider.valueProperty());
+                }
+
+                // Follow playback once per frame instead of on every currentTime change
+                boolean[] playbackUpdate = {false};  // Slider moved by playback, not by the user
+                AnimationTimer playbackTimer = new AnimationTimer() {
+                    private double shownTime = -1;   // Time the controls show
+                    private int shownSecond = -1;    // Second the label shows
+
+                    @Override
+                    public void handle(long now) {
+                        double time = player.getCurrentTime().toSeconds();
+                        if (time == shownTime) return;
+                        shownTime = time;
+                        if (!timeSlider.isValueChanging()) {
+                            playbackUpdate[0] = true;
+                            timeSlider.setValue(time);
+                            playbackUpdate[0] = false;
+                        }
+                        if ((int) time != shownSecond) {
+                            shownSecond = (int) time;
+                            currentTimeLabel.setText(formatTime(player.getCurrentTime()));
+                        }
+                        if (annotations != null) {
+                            annotations.showAt(time);
+                        }
                     }
-                    currentTimeLabel.setText(formatTime(newValue));
-                });
+                };
+                playbackTimer.start();
 
                 // Set up total duration when media is ready
                 mediaPlayer.setOnReady(() -> {
@@ -734,10 +3608,20 @@ public class HelloApplication extends Application {
                     totalTimeLabel.setText(formatTime(totalDuration));
                 });
 
-                // Seek when time slider is moved
+                // While dragging, show cached thumbnails; seek once the drag ends
+                timeSlider.valueChangingProperty().addListener((observable, wasChanging, changing) -> {
+                    scrubPreview.setVisible(changing && frameStrip != null);
+                    if (!changing) {
+                        player.seek(Duration.seconds(timeSlider.getValue()));
+                    }
+                });
                 timeSlider.valueProperty().addListener((observable, oldValue, newValue) -> {
                     if (timeSlider.isValueChanging()) {
-                        mediaPlayer.seek(Duration.seconds(newValue.doubleValue()));
+                        if (frameStrip != null) {
+                            scrubPreview.setImage(frameStrip.frameAt(newValue.doubleValue()));
+                        }
+                    } else if (!playbackUpdate[0]) {
+                        player.seek(Duration.seconds(newValue.doubleValue()));  // Click on the track
                     }
                 });
 
@@ -751,6 +3635,11 @@ public class HelloApplication extends Application {
                 controls.setAlignment(Pos.CENTER);
                 controls.setPadding(new Insets(10));
 
+                // Annotation controls, in their own row so the window stays narrow
+                HBox annotationControls = new HBox(10, new Label("Ink:"), inkPicker,
+                        new Label("Keep after pen up (s):"), lingerSlider);
+                annotationControls.setAlignment(Pos.CENTER);
+
                 // Main layout
                 BorderPane root = new BorderPane();
 
@@ -758,13 +3647,18 @@ public class HelloApplication extends Application {
                 if (isVideo) {
                     mediaView = new MediaView(mediaPlayer);
                     mediaView.setFitWidth(640);
-                    root.setCenter(mediaView);
+                    annotations.attachTo(mediaView);
+                    StackPane.setAlignment(scrubPreview, Pos.TOP_LEFT);
+                    root.setCenter(new StackPane(mediaView, annotations.getCanvas(), scrubPreview));
                 } else {
                     root.setCenter(new Label("Now Playing: " + title));
                 }
 
                 // Combine controls at bottom
                 VBox bottomPanel = new VBox(10, timeBox, controls);
+                if (isVideo) {
+                    bottomPanel.getChildren().add(annotationControls);
+                }
                 bottomPanel.setPadding(new Insets(10));
                 root.setBottom(bottomPanel);
 
@@ -773,7 +3667,13 @@ public class HelloApplication extends Application {
                 mediaStage.show();
 
                 // Clean up when window is closed
-                mediaStage.setOnCloseRequest(e -> mediaPlayer.dispose());
+                mediaStage.setOnCloseRequest(e -> {
+                    playbackTimer.stop();
+                    if (frameStrip != null) {
+                        frameStrip.dispose();
+                    }
+                    player.dispose();
+                });
             } catch (Exception e) {
                 showError("Media Error", "Could not load media: " + e.getMessage());
             }
@@ -789,6 +3689,230 @@ public class HelloApplication extends Application {
     }
 
 
+    // class drawing time-ranged annotations over a video
+    // Strokes are stored in coordinates relative to the video size and indexed by time,
+    // so the strokes active at the current playback time are found from a single bucket.
+    // A stroke is shown from the moment the pen goes down until it is lifted, so holding
+    // the pen while the clip plays stretches the range, and then for a chosen linger time.
+
+    private static class VideoAnnotationLayer {
+        public static final double DEFAULT_LINGER_SECONDS = 3;  // Shown this long after the pen is lifted
+        private static final double BUCKET_SECONDS = 1;      // Time span of one index bucket
+        private static final double LINE_WIDTH = 3;
+
+        // One stroke and the time range it is shown in
+        private static class Annotation {
+            final double start, end;      // Seconds
+            final double[] points;        // x, y pairs relative to the video size (0-1)
+            final Color color;
+
+            Annotation(double start, double end, double[] points, Color color) {
+                this.start = start;
+                this.end = end;
+                this.points = points;
+                this.color = color;
+            }
+        }
+
+        private final MediaPlayer player;
+        private final Canvas canvas = new Canvas();
+        private final GraphicsContext gc = canvas.getGraphicsContext2D();
+        private final ObjectProperty<Color> ink = new SimpleObjectProperty<>(Color.RED);
+        private final DoubleProperty linger = new SimpleDoubleProperty(DEFAULT_LINGER_SECONDS);
+
+        // Interval index: bucket i holds every annotation overlapping [i, i + 1) * BUCKET_SECONDS
+        private final List<List<Annotation>> buckets = new ArrayList<>();
+        private final List<Annotation> shown = new ArrayList<>();   // Annotations on screen now
+        private final List<Annotation> active = new ArrayList<>();  // Reused for lookups
+
+        // Stroke being drawn
+        private double[] stroke = new double[128];
+        private int strokeSize = 0;
+        private double strokeStart;
+
+        public VideoAnnotationLayer(MediaPlayer player) {
+            this.player = player;
+            canvas.setOnMousePressed(this::handlePressed);
+            canvas.setOnMouseDragged(this::handleDragged);
+            canvas.setOnMouseReleased(e -> finishStroke());
+        }
+
+        public Canvas getCanvas() { return canvas; }
+        public ObjectProperty<Color> inkProperty() { return ink; }
+        public DoubleProperty lingerProperty() { return linger; }
+
+
+        // Keeps the overlay the size of the displayed video
+        public void attachTo(MediaView view) {
+            view.layoutBoundsProperty().addListener((observable, oldBounds, bounds) -> {
+                canvas.setWidth(bounds.getWidth());
+                canvas.setHeight(bounds.getHeight());
+                redraw();
+            });
+        }
+
+
+        // Shows the annotations active at the given time, redrawing only if they changed
+        public void showAt(double time) {
+            active.clear();
+            int bucket = (int) (time / BUCKET_SECONDS);
+            if (bucket >= 0 && bucket < buckets.size()) {
+                for (Annotation annotation : buckets.get(bucket)) {
+                    if (annotation.start <= time && time < annotation.end) {
+                        active.add(annotation);
+                    }
+                }
+            }
+            if (!active.equals(shown)) {
+                shown.clear();
+                shown.addAll(active);
+                redraw();
+            }
+        }
+
+
+        private void add(Annotation annotation) {
+            int first = (int) (annotation.start / BUCKET_SECONDS);
+            int last = (int) (annotation.end / BUCKET_SECONDS);
+            while (buckets.size() <= last) {
+                buckets.add(new ArrayList<>());
+            }
+            for (int bucket = first; bucket <= last; bucket++) {
+                buckets.get(bucket).add(annotation);
+            }
+        }
+
+
+        private void handlePressed(MouseEvent e) {
+            strokeStart = player.getCurrentTime().toSeconds();
+            strokeSize = 0;
+            addPoint(e.getX(), e.getY());
+        }
+
+        private void handleDragged(MouseEvent e) {
+            double lastX = stroke[strokeSize - 2] * canvas.getWidth();
+            double lastY = stroke[strokeSize - 1] * canvas.getHeight();
+            addPoint(e.getX(), e.getY());
+            gc.setStroke(ink.get());
+            gc.setLineWidth(LINE_WIDTH);
+            gc.strokeLine(lastX, lastY, e.getX(), e.getY());
+        }
+
+        private void addPoint(double x, double y) {
+            if (strokeSize + 2 > stroke.length) {
+                stroke = Arrays.copyOf(stroke, stroke.length * 2);
+            }
+            stroke[strokeSize++] = x / canvas.getWidth();
+            stroke[strokeSize++] = y / canvas.getHeight();
+        }
+
+
+        // Stores the stroke from pen-down to pen-up, plus the linger time
+        private void finishStroke() {
+            if (strokeSize < 4) return;
+            double strokeEnd = Math.max(strokeStart, player.getCurrentTime().toSeconds());
+            Annotation annotation = new Annotation(strokeStart, strokeEnd + linger.get(),
+                    Arrays.copyOf(stroke, strokeSize), ink.get());
+            add(annotation);
+            shown.add(annotation);
+            strokeSize = 0;
+            redraw();
+        }
+
+
+        private void redraw() {
+            double width = canvas.getWidth();
+            double height = canvas.getHeight();
+            gc.clearRect(0, 0, width, height);
+            gc.setLineWidth(LINE_WIDTH);
+            for (Annotation annotation : shown) {
+                strokePath(annotation.points, annotation.points.length, annotation.color);
+            }
+            if (strokeSize > 0) {
+                strokePath(stroke, strokeSize, ink.get());  // Stroke still being drawn
+            }
+        }
+
+        private void strokePath(double[] points, int size, Color color) {
+            double width = canvas.getWidth();
+            double height = canvas.getHeight();
+            gc.setStroke(color);
+            gc.beginPath();
+            gc.moveTo(points[0] * width, points[1] * height);
+            for (int i = 2; i < size; i += 2) {
+                gc.lineTo(points[i] * width, points[i + 1] * height);
+            }
+            gc.stroke();
+        }
+    }
+
+
+    // class capturing thumbnails of a video in the background for scrubbing
+    // A second, muted player steps through the clip and its view is snapshotted at
+    // intervals scaled to the clip, so at most MAX_THUMBNAILS are kept; it only plays
+    // while a seek settles. Frames are looked up by the nearest earlier capture time.
+
+    private static class FrameStrip {
+        private static final double MIN_INTERVAL_SECONDS = 2;  // Time between thumbnails on short clips
+        private static final int MAX_THUMBNAILS = 120;         // About 7 MB at the thumbnail width
+        private static final double THUMBNAIL_WIDTH = 160;
+        private static final Duration SETTLE_TIME = Duration.millis(150);  // Lets a seek reach the view
+
+        private final MediaPlayer player;
+        private final MediaView view;
+        private final TreeMap<Double, Image> frames = new TreeMap<>();  // Capture time -> thumbnail
+        private final PauseTransition settle = new PauseTransition(SETTLE_TIME);
+        private double interval = MIN_INTERVAL_SECONDS;
+        private double next = 0;  // Next capture time
+        private boolean disposed = false;
+
+        public FrameStrip(Media media) {
+            player = new MediaPlayer(media);
+            player.setMute(true);
+            view = new MediaView(player);
+            view.setFitWidth(THUMBNAIL_WIDTH);
+            settle.setOnFinished(e -> capture());
+            player.setOnReady(() -> {
+                interval = Math.max(MIN_INTERVAL_SECONDS, player.getTotalDuration().toSeconds() / MAX_THUMBNAILS);
+                seekNext();
+            });
+        }
+
+
+        // Nearest thumbnail at or before the time, or null if none captured yet
+        public Image frameAt(double seconds) {
+            Map.Entry<Double, Image> entry = frames.floorEntry(seconds);
+            return entry == null ? null : entry.getValue();
+        }
+
+        private void seekNext() {
+            if (disposed) return;
+            if (next > player.getTotalDuration().toSeconds()) {
+                dispose();  // Every thumbnail captured
+                return;
+            }
+            player.seek(Duration.seconds(next));
+            player.play();  // Frames only reach the view while the player runs
+            settle.playFromStart();
+        }
+
+        private void capture() {
+            if (disposed) return;
+            player.pause();  // Idle until the next seek instead of decoding the whole clip
+            frames.put(next, view.snapshot(null, null));
+            next += interval;
+            seekNext();
+        }
+
+        public void dispose() {
+            if (disposed) return;
+            disposed = true;
+            settle.stop();
+            player.dispose();
+        }
+    }
+
+
     // class managing the toolbar UI
 
     private static class ToolbarManager {
@@ -803,33 +3927,82 @@ public class HelloApplication extends Application {
         }
 
 
-        //creates and return Configured HBox containing toolbar controls
-        public HBox createToolbar() {
+        //creates and return Configured toolbar: drawing controls on top, actions below
+        public VBox createToolbar() {
             // Create toolbar buttons
             Button undoBtn = createButton("Undo", drawingCanvas::undo);
             Button redoBtn = createButton("Redo", drawingCanvas::redo);
             Button clearBtn = createButton("Clear", drawingCanvas::clearCanvas);
             Button saveBtn = createButton("Save", drawingCanvas::saveCanvas);
+            Button timelapseBtn = createButton("Timelapse", drawingCanvas::exportTimelapse);
+            Button cutBtn = createButton("Cut", drawingCanvas::cutSelection);
+            Button copyBtn = createButton("Copy", drawingCanvas::copySelection);
+            Button pasteBtn = createButton("Paste", drawingCanvas::pasteSelection);
             Button audioBtn = createButton("Audio", mediaHandler::addAudio);
             Button videoBtn = createButton("Video", mediaHandler::addVideo);
 
-            // Create and configure toolbar container
-            HBox toolbar = new HBox(10);
-            toolbar.setPadding(new Insets(10));
-
-            // Add all controls to toolbar
-            toolbar.getChildren().addAll(
-                    drawingCanvas.getToolSelector(),
+            // Options that only apply to some tools
+            HBox levelOptions = createOptionGroup(new Label("Level:"), drawingCanvas.getLevelSlider());
+            HBox effectOptions = createOptionGroup(drawingCanvas.getEffectSelector(),
+                    new Label("Brightness:"), drawingCanvas.getBrightnessSlider());
+            HBox brushOptions = createOptionGroup(drawingCanvas.getBrushSelector(),
+                    new Label("Hardness:"), drawingCanvas.getHardnessSlider());
+            HBox textOptions = createOptionGroup(drawingCanvas.getFontSelector(), drawingCanvas.getTextInput());
+            HBox shapeOptions = createOptionGroup(drawingCanvas.getSmartShapesBox());
+
+            // Show each group only while one of its tools is selected
+            ComboBox<String> toolSelector = drawingCanvas.getToolSelector();
+            Runnable showToolOptions = () -> {
+                String tool = toolSelector.getValue();
+                showFor(levelOptions, tool, "Fill", "Effect");
+                showFor(effectOptions, tool, "Effect");
+                showFor(brushOptions, tool, "Draw");
+                showFor(textOptions, tool, "Text");
+                showFor(shapeOptions, tool, "Draw", "Line", "Rectangle", "Circle");
+            };
+            toolSelector.valueProperty().addListener((observable, oldTool, newTool) -> showToolOptions.run());
+            showToolOptions.run();
+
+            // Drawing controls in the first row, wrapping whole groups on narrow windows
+            FlowPane drawingRow = new FlowPane(10, 8,
+                    toolSelector,
                     new Label("Stroke:"), drawingCanvas.getStrokeColorPicker(),
                     new Label("Fill:"), drawingCanvas.getFillColorPicker(),
                     new Label("Size:"), drawingCanvas.getSizeSlider(),
-                    drawingCanvas.getFontSelector(), drawingCanvas.getTextInput(),
-                    undoBtn, redoBtn, clearBtn, saveBtn, audioBtn, videoBtn
+                    levelOptions, effectOptions, brushOptions, textOptions, shapeOptions
             );
+            drawingRow.setAlignment(Pos.CENTER_LEFT);
+
+            // Actions in the second row
+            HBox actionRow = new HBox(10,
+                    undoBtn, redoBtn, cutBtn, copyBtn, pasteBtn,
+                    clearBtn, saveBtn, timelapseBtn, audioBtn, videoBtn
+            );
+            actionRow.setAlignment(Pos.CENTER_LEFT);
+
+            // Create and configure toolbar container
+            VBox toolbar = new VBox(8, drawingRow, actionRow);
+            toolbar.setPadding(new Insets(10));
             return toolbar;
         }
 
 
+        //groups the controls of one tool option
+        private HBox createOptionGroup(Node... controls) {
+            HBox group = new HBox(10, controls);
+            group.setAlignment(Pos.CENTER_LEFT);
+            return group;
+        }
+
+
+        //shows the group only for the listed tools; hidden groups take no space
+        private void showFor(HBox group, String tool, String... tools) {
+            boolean visible = Arrays.asList(tools).contains(tool);
+            group.setVisible(visible);
+            group.setManaged(visible);
+        }
+
+
         //create a toolbar button
         private Button createButton(String text, Runnable action) {
             Button button = new Button(text);
@@ -839,6 +4012,126 @@ public class HelloApplication extends Application {
     }
 
 
+    // class watching the FX application thread for stalls
+    // A daemon thread keeps one heartbeat queued with Platform.runLater. When a heartbeat
+    // waits longer than the threshold, the FX thread's stack is sampled until it runs, and
+    // the samples are written as a collapsed-stack file that flame graph tools can render.
+
+    private static class StallWatchdog {
+        private static final long SAMPLE_INTERVAL_MS = 10;  // Heartbeat check and stack sampling period
+        private static final int MAX_REPORTS = 50;          // Older stall reports are deleted
+        private static final DateTimeFormatter REPORT_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+        private final Thread fxThread;       // Thread being watched
+        private final long thresholdNanos;   // Shortest wait reported as a stall
+        private final Path reportDir;        // Rolling directory of stall reports
+        private final Thread monitor;
+
+        private volatile boolean heartbeatPending = false;
+        private volatile boolean running = true;
+
+        // Must be created on the FX thread
+        public StallWatchdog(long thresholdMillis, Path reportDir) {
+            this.fxThread = Thread.currentThread();
+            this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+            this.reportDir = reportDir;
+            monitor = new Thread(this::watch, "fx-stall-watchdog");
+            monitor.setDaemon(true);
+        }
+
+        public void start() {
+            monitor.start();
+        }
+
+        public void stop() {
+            running = false;
+            monitor.interrupt();
+        }
+
+
+        // Posts heartbeats and samples the FX thread whenever one is late
+        private void watch() {
+            try {
+                while (running) {
+                    heartbeatPending = true;
+                    long postedAt = System.nanoTime();
+                    Platform.runLater(() -> heartbeatPending = false);
+
+                    while (heartbeatPending && running) {
+                        Thread.sleep(SAMPLE_INTERVAL_MS);
+                        if (heartbeatPending && System.nanoTime() - postedAt > thresholdNanos) {
+                            sampleStall(postedAt);
+                        }
+                    }
+                    Thread.sleep(SAMPLE_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+
+        // Collects FX thread stacks until the heartbeat gets through, then writes a report
+        private void sampleStall(long postedAt) throws InterruptedException {
+            Map<String, Integer> stacks = new HashMap<>();
+            while (heartbeatPending && running) {
+                stacks.merge(collapse(fxThread.getStackTrace()), 1, Integer::sum);
+                Thread.sleep(SAMPLE_INTERVAL_MS);
+            }
+            long stallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - postedAt);
+            writeReport(stacks, stallMillis);
+        }
+
+
+        // Frames root first, separated by semicolons
+        private static String collapse(StackTraceElement[] frames) {
+            StringBuilder stack = new StringBuilder();
+            for (int i = frames.length - 1; i >= 0; i--) {
+                if (stack.length() > 0) stack.append(';');
+                stack.append(frames[i].getClassName()).append('.').append(frames[i].getMethodName());
+            }
+            return stack.length() == 0 ? "[idle]" : stack.toString();
+        }
+
+
+        // Writes "stack count" lines and keeps only the newest reports
+        private void writeReport(Map<String, Integer> stacks, long stallMillis) {
+            try {
+                Files.createDirectories(reportDir);
+                Path report = reportDir.resolve("stall-" + LocalDateTime.now().format(REPORT_TIME)
+                        + "-" + stallMillis + "ms.collapsed");
+                List<String> lines = new ArrayList<>();
+                stacks.forEach((stack, count) -> lines.add(stack + " " + count));
+                Files.write(report, lines);
+                System.out.println("FX thread stalled for " + stallMillis + " ms, samples in " + report);
+
+                // Names start with the timestamp, so sorting them sorts by age
+                try (Stream<Path> files = Files.list(reportDir)) {
+                    List<Path> reports = files
+                            .filter(path -> path.getFileName().toString().endsWith(".collapsed"))
+                            .sorted()
+                            .collect(Collectors.toList());
+                    for (int i = 0; i < reports.size() - MAX_REPORTS; i++) {
+                        Files.deleteIfExists(reports.get(i));
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Could not write stall report: " + e.getMessage());
+            }
+        }
+    }
+
+
+    //shows an information dialog
+    private static void showInfo(String title, String message) {
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.showAndWait();
+    }
+
+
     //shows an error diolog/
 
     private static void showError(String title, String message) {